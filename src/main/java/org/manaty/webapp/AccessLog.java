@@ -0,0 +1,174 @@
+/*
+ * (C) Copyright 2018-2019 Manaty SARL (https://manaty.net) and contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Affero General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. This program is
+ * not suitable for any direct or indirect application in MILITARY industry See the GNU Affero
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.manaty.webapp;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Access log of {@link WebApp}, one record per request written to the
+ * {@code org.manaty.webapp.access} logger. Requests only publish their record
+ * in a lock-free ring buffer, a daemon thread formats and writes them. When
+ * the writer falls behind, the oldest records are overwritten and counted as
+ * dropped. Successful requests are sampled, errors are always logged.
+ */
+class AccessLog {
+
+    static final double DEFAULT_SAMPLE_RATE = 1.0;
+
+    private static final Logger ACCESS = LoggerFactory.getLogger("org.manaty.webapp.access");
+    private static final int CAPACITY = 8192;
+    private static final int MASK = CAPACITY - 1;
+    private static final long IDLE_WAIT = 10L;
+    private static final int MAX_PUBLISH_WAITS = 10;
+
+    private final AtomicReferenceArray<Record> slots = new AtomicReferenceArray<>(CAPACITY);
+    private final AtomicLong head = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private final AtomicBoolean started = new AtomicBoolean();
+    private volatile boolean enabled = true;
+    private volatile boolean stopped;
+    private volatile double sampleRate = DEFAULT_SAMPLE_RATE;
+
+    /**
+     * @param enabled    false to log no request
+     * @param sampleRate Share of the successful requests that are logged, from 0
+     *                   to 1
+     */
+    void configure(boolean enabled, double sampleRate) {
+        this.enabled = enabled;
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * Publishes the record of a request, it is written asynchronously.
+     *
+     * @param appCode The code of the web application
+     * @param path    The requested path
+     * @param outcome How the request was served
+     * @param status  The status of the response
+     * @param bytes   The number of bytes written to the response
+     * @param nanos   The time spent serving the request
+     */
+    void log(String appCode, String path, WebAppMetrics.Outcome outcome, int status, long bytes, long nanos) {
+        if (!enabled || stopped || !ACCESS.isInfoEnabled()) {
+            return;
+        }
+        if (status < 400 && sampleRate < 1.0 && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return;
+        }
+        if (!started.get() && started.compareAndSet(false, true)) {
+            Thread thread = new Thread(this::run, "webapp-access-log");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        long sequence = head.getAndIncrement();
+        slots.set((int) (sequence & MASK), new Record(sequence, System.currentTimeMillis(), appCode, path, outcome,
+                status, bytes, nanos));
+    }
+
+    /**
+     * Stops the writer once the published records are written, the records of
+     * later requests are not logged.
+     */
+    void stop() {
+        stopped = true;
+    }
+
+    /**
+     * @return the number of records overwritten before they were written
+     */
+    long getDropped() {
+        return dropped.sum();
+    }
+
+    double getSampleRate() {
+        return sampleRate;
+    }
+
+    private void run() {
+        long tail = 0;
+        int waits = 0;
+        while (true) {
+            try {
+                Record record = slots.get((int) (tail & MASK));
+                if (record != null && record.sequence >= tail) {
+                    if (record.sequence > tail) {
+                        // the writer was lapped, the records in between are lost
+                        dropped.add(record.sequence - tail);
+                        tail = record.sequence;
+                    }
+                    write(record);
+                    tail++;
+                    waits = 0;
+                } else if (head.get() > tail) {
+                    if (++waits > MAX_PUBLISH_WAITS) {
+                        // the record was claimed but never published, or overwritten
+                        dropped.increment();
+                        tail = Math.max(tail + 1, head.get() - CAPACITY);
+                        waits = 0;
+                    } else {
+                        Thread.sleep(1);
+                    }
+                } else if (stopped) {
+                    return;
+                } else {
+                    Thread.sleep(IDLE_WAIT);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                // a failing appender must not stop the writer
+                tail++;
+            }
+        }
+    }
+
+    private static void write(Record record) {
+        ACCESS.info("time={} app={} path={} outcome={} status={} bytes={} durationMicros={}", record.time,
+                record.appCode, record.path, record.outcome, record.status, record.bytes, record.nanos / 1000);
+    }
+
+    private static class Record {
+        private final long sequence;
+        private final long time;
+        private final String appCode;
+        private final String path;
+        private final WebAppMetrics.Outcome outcome;
+        private final int status;
+        private final long bytes;
+        private final long nanos;
+
+        private Record(long sequence, long time, String appCode, String path, WebAppMetrics.Outcome outcome,
+                int status, long bytes, long nanos) {
+            this.sequence = sequence;
+            this.time = time;
+            this.appCode = appCode;
+            this.path = path;
+            this.outcome = outcome;
+            this.status = status;
+            this.bytes = bytes;
+            this.nanos = nanos;
+        }
+    }
+}
@@ -0,0 +1,451 @@
+/*
+ * (C) Copyright 2018-2019 Manaty SARL (https://manaty.net) and contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Affero General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. This program is
+ * not suitable for any direct or indirect application in MILITARY industry See the GNU Affero
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.manaty.webapp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Size-bounded LRU cache of the static assets served by {@link WebApp}. Entries
+ * are keyed by the absolute path of the file and checked against its length
+ * and last modification date on each access, so edits are served without a
+ * restart. Small assets are kept on the heap, files above the stream threshold
+ * go to an {@link OffHeapAssetStore} with its own budget.
+ */
+class AssetCache {
+
+    static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    static final int DEFAULT_MAX_ENTRIES = 2048;
+    static final long DEFAULT_MAX_ENTRY_BYTES = 2L * 1024 * 1024;
+
+    /**
+     * Resolves the content type of a file when it is loaded in the cache.
+     */
+    @FunctionalInterface
+    interface ContentTypeResolver {
+        String resolve(File file);
+    }
+
+    private final LinkedHashMap<String, StaticAsset> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final OffHeapAssetStore offHeap = new OffHeapAssetStore();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private volatile long maxBytes = DEFAULT_MAX_BYTES;
+    private volatile int maxEntries = DEFAULT_MAX_ENTRIES;
+    private volatile long maxEntryBytes = DEFAULT_MAX_ENTRY_BYTES;
+    private long currentBytes;
+
+    void configure(long maxBytes, int maxEntries, long maxEntryBytes) {
+        if (this.maxBytes == maxBytes && this.maxEntries == maxEntries && this.maxEntryBytes == maxEntryBytes) {
+            return;
+        }
+        this.maxBytes = maxBytes;
+        this.maxEntries = maxEntries;
+        this.maxEntryBytes = maxEntryBytes;
+        synchronized (this) {
+            evictOverflow();
+        }
+    }
+
+    /**
+     * @param maxBytes      Budget of the direct buffers holding large assets, 0
+     *                      disables the off-heap tier
+     * @param maxEntryBytes Size above which files are streamed from disk
+     */
+    void configureOffHeap(long maxBytes, long maxEntryBytes) {
+        offHeap.configure(maxBytes, maxEntryBytes);
+    }
+
+    /**
+     * Returns the asset for a file above the stream threshold. It is served from
+     * the off-heap tier when it fits its budget, and streamed from disk
+     * otherwise.
+     *
+     * @param file        The file to serve
+     * @param resolver    Resolves the content type when the file must be loaded
+     * @param digestIndex Provides the ETag of the file
+     * @return The asset, without content on the heap
+     * @throws IOException if the file cannot be read
+     */
+    StaticAsset getLarge(File file, ContentTypeResolver resolver, DigestIndex digestIndex) throws IOException {
+        long length = file.length();
+        if (!offHeap.accepts(length)) {
+            return describe(file, resolver.resolve(file), digestIndex);
+        }
+        StaticAsset asset = offHeap.find(file.getAbsolutePath(), length, file.lastModified());
+        if (asset != null) {
+            hits.incrementAndGet();
+            return asset;
+        }
+        misses.incrementAndGet();
+        return offHeap.load(file, resolver.resolve(file), digestIndex);
+    }
+
+    /**
+     * Returns the asset for the given file, loading it from disk if it is not
+     * cached or if the cached copy is stale.
+     *
+     * @param file        The file to serve
+     * @param resolver    Resolves the content type when the file must be loaded
+     * @param digestIndex Provides the ETag of the file
+     * @return The asset
+     * @throws IOException if the file cannot be read
+     */
+    StaticAsset get(File file, ContentTypeResolver resolver, DigestIndex digestIndex) throws IOException {
+        String key = file.getAbsolutePath();
+        long length = file.length();
+        long lastModified = file.lastModified();
+        synchronized (this) {
+            StaticAsset asset = entries.get(key);
+            if (asset != null && asset.isFresh(length, lastModified)) {
+                hits.incrementAndGet();
+                return asset;
+            }
+            if (asset != null) {
+                remove(key);
+            }
+        }
+        misses.incrementAndGet();
+        byte[] content = Files.readAllBytes(file.toPath());
+        StaticAsset asset = new StaticAsset(key, content.length, lastModified, resolver.resolve(file),
+                digestIndex.eTag(file, content.length, lastModified, content), content);
+        if (content.length == length && content.length <= maxEntryBytes) {
+            put(asset);
+        }
+        return asset;
+    }
+
+    /**
+     * Loads an asset identified by its content.
+     */
+    @FunctionalInterface
+    interface AssetLoader {
+        StaticAsset load(String key) throws IOException;
+    }
+
+    /**
+     * Returns the asset for a key identifying immutable content, like a git blob
+     * id. A cached asset is never stale, it is only dropped by eviction.
+     *
+     * @param key    The key of the asset
+     * @param loader Loads the asset when it is not cached
+     * @return The asset
+     * @throws IOException if the asset cannot be loaded
+     */
+    StaticAsset get(String key, AssetLoader loader) throws IOException {
+        synchronized (this) {
+            StaticAsset asset = entries.get(key);
+            if (asset != null) {
+                hits.incrementAndGet();
+                return asset;
+            }
+        }
+        misses.incrementAndGet();
+        StaticAsset asset = loader.load(key);
+        if (asset.getContent() != null && asset.getContent().length <= maxEntryBytes) {
+            put(asset);
+        }
+        return asset;
+    }
+
+    /**
+     * Describes a file that is streamed from disk instead of being loaded in the
+     * cache. The returned asset has no content.
+     *
+     * @param file        The file to serve
+     * @param contentType The content type of the file
+     * @param digestIndex Provides the ETag of the file
+     * @return The asset metadata
+     * @throws IOException if the file cannot be read to compute its ETag
+     */
+    static StaticAsset describe(File file, String contentType, DigestIndex digestIndex) throws IOException {
+        long length = file.length();
+        long lastModified = file.lastModified();
+        return new StaticAsset(file.getAbsolutePath(), length, lastModified, contentType,
+                digestIndex.eTag(file, length, lastModified, null), null, StaticAsset.fileSource(file));
+    }
+
+    /**
+     * Returns the content of the asset in the given encoding. A precompressed
+     * sibling file ({@code app.js.gz}, {@code app.js.br}) is used when it is at
+     * least as recent as the file, otherwise gzip is computed in memory. Brotli is
+     * only served from precompressed files. The variant is computed once per
+     * version of the file and kept with the cached asset. Assets above the entry
+     * limit are not cached, so they are only served from precompressed files
+     * instead of being compressed again on each request.
+     *
+     * @param asset    The asset to encode
+     * @param file     The file of the asset, null if it has no file
+     * @param encoding {@code gzip} or {@code br}
+     * @return The encoded content, or null if the encoding is not available or
+     *         does not make the content smaller
+     */
+    byte[] getVariant(StaticAsset asset, File file, String encoding) {
+        byte[] variant = asset.getVariant(encoding);
+        if (variant == null) {
+            synchronized (asset) {
+                variant = asset.getVariant(encoding);
+                if (variant == null) {
+                    variant = encode(asset, file, encoding, asset.getLength() <= maxEntryBytes);
+                    asset.putVariant(encoding, variant);
+                    synchronized (this) {
+                        if (entries.get(asset.getPath()) == asset) {
+                            currentBytes += variant.length;
+                            evictOverflow();
+                        }
+                    }
+                }
+            }
+        }
+        return variant.length == 0 ? null : variant;
+    }
+
+    private static byte[] encode(StaticAsset asset, File file, String encoding, boolean compress) {
+        String extension = "br".equals(encoding) ? ".br" : ".gz";
+        File precompressed = file == null ? null : new File(file.getPath() + extension);
+        try {
+            if (precompressed != null && precompressed.isFile()
+                    && precompressed.lastModified() >= asset.getLastModified()) {
+                return Files.readAllBytes(precompressed.toPath());
+            }
+            if (!compress || !"gzip".equals(encoding)) {
+                return new byte[0];
+            }
+            ByteArrayOutputStream output = new ByteArrayOutputStream(asset.getContent().length / 3);
+            try (GZIPOutputStream gzip = new GZIPOutputStream(output)) {
+                gzip.write(asset.getContent());
+            }
+            return output.size() < asset.getContent().length ? output.toByteArray() : new byte[0];
+        } catch (IOException e) {
+            return new byte[0];
+        }
+    }
+
+    /**
+     * Removes the asset cached for the given file, if any.
+     *
+     * @param file The file whose asset must be dropped
+     */
+    void invalidate(File file) {
+        synchronized (this) {
+            remove(file.getAbsolutePath());
+        }
+        offHeap.invalidate(file.getAbsolutePath());
+    }
+
+    /**
+     * Removes the assets cached for the given file or for the files under the
+     * given directory.
+     *
+     * @param path An absolute path
+     */
+    void invalidatePrefix(String path) {
+        synchronized (this) {
+            Iterator<StaticAsset> iterator = entries.values().iterator();
+            while (iterator.hasNext()) {
+                StaticAsset asset = iterator.next();
+                if (LookupCache.isUnder(asset.getPath(), path)) {
+                    iterator.remove();
+                    currentBytes -= asset.getWeight();
+                }
+            }
+        }
+        offHeap.invalidatePrefix(path);
+    }
+
+    /**
+     * Returns the asset cached for the given file without checking it against
+     * the file on disk.
+     *
+     * @param file The file to serve
+     * @return The cached asset, or null if it is not cached
+     */
+    StaticAsset peek(File file) {
+        StaticAsset asset;
+        synchronized (this) {
+            asset = entries.get(file.getAbsolutePath());
+        }
+        if (asset == null) {
+            asset = offHeap.peek(file.getAbsolutePath());
+        }
+        if (asset != null) {
+            hits.incrementAndGet();
+        }
+        return asset;
+    }
+
+    void clear() {
+        synchronized (this) {
+            entries.clear();
+            currentBytes = 0;
+        }
+        offHeap.clear();
+    }
+
+    /**
+     * @return the number of assets held on the heap
+     */
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the number of bytes held on the heap
+     */
+    synchronized long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    long getMaxBytes() {
+        return maxBytes;
+    }
+
+    int getMaxEntries() {
+        return maxEntries;
+    }
+
+    long getMaxEntryBytes() {
+        return maxEntryBytes;
+    }
+
+    /**
+     * Memory held by a cached asset.
+     */
+    static class Usage {
+        private final String path;
+        private final boolean offHeap;
+        private final long bytes;
+
+        Usage(String path, boolean offHeap, long bytes) {
+            this.path = path;
+            this.offHeap = offHeap;
+            this.bytes = bytes;
+        }
+
+        String getPath() {
+            return path;
+        }
+
+        /**
+         * @return true if the asset is held in direct buffers
+         */
+        boolean isOffHeap() {
+            return offHeap;
+        }
+
+        /**
+         * @return the bytes of the content and its variants
+         */
+        long getBytes() {
+            return bytes;
+        }
+    }
+
+    /**
+     * @param filter Accepts the keys of the assets to list
+     * @return the memory held by the matching assets of both tiers, largest
+     *         first
+     */
+    List<Usage> list(Predicate<String> filter) {
+        List<Usage> usages = new ArrayList<>();
+        synchronized (this) {
+            for (StaticAsset asset : entries.values()) {
+                if (filter.test(asset.getPath())) {
+                    usages.add(new Usage(asset.getPath(), false, asset.getWeight()));
+                }
+            }
+        }
+        offHeap.list(filter, usages);
+        usages.sort(Comparator.comparingLong(Usage::getBytes).reversed());
+        return usages;
+    }
+
+    /**
+     * @return the number of assets held in direct buffers
+     */
+    int getOffHeapSize() {
+        return offHeap.size();
+    }
+
+    /**
+     * @return the number of bytes held in direct buffers
+     */
+    long getOffHeapBytes() {
+        return offHeap.getCurrentBytes();
+    }
+
+    long getOffHeapMaxBytes() {
+        return offHeap.getMaxBytes();
+    }
+
+    long getOffHeapMaxEntryBytes() {
+        return offHeap.getMaxEntryBytes();
+    }
+
+    long getOffHeapEvictions() {
+        return offHeap.getEvictions();
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    long getEvictions() {
+        return evictions.get();
+    }
+
+    private synchronized void put(StaticAsset asset) {
+        StaticAsset previous = entries.put(asset.getPath(), asset);
+        if (previous != null) {
+            currentBytes -= previous.getWeight();
+        }
+        currentBytes += asset.getWeight();
+        evictOverflow();
+    }
+
+    private void remove(String key) {
+        StaticAsset removed = entries.remove(key);
+        if (removed != null) {
+            currentBytes -= removed.getWeight();
+        }
+    }
+
+    private void evictOverflow() {
+        Iterator<StaticAsset> iterator = entries.values().iterator();
+        while ((currentBytes > maxBytes || entries.size() > maxEntries) && iterator.hasNext()) {
+            StaticAsset eldest = iterator.next();
+            iterator.remove();
+            currentBytes -= eldest.getWeight();
+            evictions.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * (C) Copyright 2018-2019 Manaty SARL (https://manaty.net) and contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Affero General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. This program is
+ * not suitable for any direct or indirect application in MILITARY industry See the GNU Affero
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.manaty.webapp;
+
+/**
+ * A range of bytes requested through the Range header.
+ */
+class ByteRange {
+
+    private final long start;
+    private final long end;
+    private final long total;
+
+    ByteRange(long start, long end, long total) {
+        this.start = start;
+        this.end = end;
+        this.total = total;
+    }
+
+    long getStart() {
+        return start;
+    }
+
+    long getEnd() {
+        return end;
+    }
+
+    long getLength() {
+        return end - start + 1;
+    }
+
+    String toContentRange() {
+        return "bytes " + start + "-" + end + "/" + total;
+    }
+}
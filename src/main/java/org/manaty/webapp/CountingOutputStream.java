@@ -0,0 +1,48 @@
+/*
+ * (C) Copyright 2018-2019 Manaty SARL (https://manaty.net) and contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Affero General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. This program is
+ * not suitable for any direct or indirect application in MILITARY industry See the GNU Affero
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.manaty.webapp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Counts the bytes written through it, starting from a given position.
+ */
+class CountingOutputStream extends java.io.FilterOutputStream {
+
+    private long position;
+
+    CountingOutputStream(OutputStream output, long position) {
+        super(output);
+        this.position = position;
+    }
+
+    long getPosition() {
+        return position;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        position++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        position += len;
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * (C) Copyright 2018-2019 Manaty SARL (https://manaty.net) and contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Affero General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. This program is
+ * not suitable for any direct or indirect application in MILITARY industry See the GNU Affero
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.manaty.webapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Strong ETags computed from the SHA-256 of the file contents. Digests are
+ * computed once per version (length and last modification date) of a file and
+ * persisted in an index file under the webapp directory, so that restarts and
+ * other nodes serving the same files return the same validators.
+ */
+class DigestIndex {
+
+    static final String INDEX_FILE = ".etag-index";
+
+    private static final Logger LOG = LoggerFactory.getLogger(DigestIndex.class);
+    private static final long FLUSH_DELAY = 2000L;
+    private static final Map<String, DigestIndex> INDEXES = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "webapp-digest-index");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        // pending flushes still run once the flusher of a previous version is shut down
+        WebAppService.register("digest-index", FLUSHER::shutdown);
+    }
+
+    private final String rootPath;
+    private final Path indexPath;
+    private final Map<String, Digest> digests = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    private DigestIndex(String rootPath, Path indexPath) {
+        this.rootPath = rootPath;
+        this.indexPath = indexPath;
+        load();
+    }
+
+    /**
+     * @param rootPath   Directory the indexed paths are relative to
+     * @param webappPath Directory where the index is stored
+     * @return the digest index of the given directories
+     */
+    static DigestIndex forDirectory(String rootPath, String webappPath) {
+        Path indexPath = new File(webappPath, INDEX_FILE).toPath();
+        return INDEXES.computeIfAbsent(indexPath.toString(), key -> new DigestIndex(rootPath, indexPath));
+    }
+
+    /**
+     * Returns the ETag of the given version of a file, computing its digest if it
+     * is not indexed yet.
+     *
+     * @param file         The file
+     * @param length       The length of the file
+     * @param lastModified The last modification date of the file
+     * @param content      The content of the file if already loaded, null to read
+     *                     it from disk
+     * @return The quoted strong ETag
+     * @throws IOException if the file must be read and cannot be
+     */
+    String eTag(File file, long length, long lastModified, byte[] content) throws IOException {
+        String key = keyOf(file);
+        Digest digest = digests.get(key);
+        if (digest == null || digest.length != length || digest.lastModified != lastModified) {
+            digest = new Digest(length, lastModified, content != null ? hash(content) : hash(file));
+            digests.put(key, digest);
+            scheduleFlush();
+        }
+        return "\"" + digest.hash + "\"";
+    }
+
+    /**
+     * Drops the digest of the given file.
+     *
+     * @param file The file
+     */
+    void invalidate(File file) {
+        if (digests.remove(keyOf(file)) != null) {
+            scheduleFlush();
+        }
+    }
+
+    int size() {
+        return digests.size();
+    }
+
+    /**
+     * @param eTag     The quoted ETag of the identity content
+     * @param encoding The content encoding of the variant
+     * @return the ETag of the encoded variant
+     */
+    static String variantETag(String eTag, String encoding) {
+        if (eTag.endsWith("\"")) {
+            return eTag.substring(0, eTag.length() - 1) + "-" + encoding + "\"";
+        }
+        return eTag + "-" + encoding;
+    }
+
+    static String hash(byte[] content) {
+        MessageDigest messageDigest = newMessageDigest();
+        messageDigest.update(content);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(messageDigest.digest());
+    }
+
+    static String hash(File file) throws IOException {
+        MessageDigest messageDigest = newMessageDigest();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                messageDigest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(messageDigest.digest());
+    }
+
+    private static MessageDigest newMessageDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private String keyOf(File file) {
+        String path = file.getAbsolutePath();
+        return path.startsWith(rootPath) ? path.substring(rootPath.length()) : path;
+    }
+
+    private void load() {
+        if (!Files.isRegularFile(indexPath)) {
+            return;
+        }
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(indexPath, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        } catch (IOException e) {
+            LOG.warn("Failed to load digest index {}", indexPath, e);
+            return;
+        }
+        for (String key : properties.stringPropertyNames()) {
+            String[] values = properties.getProperty(key).split(":", 3);
+            if (values.length == 3) {
+                try {
+                    digests.put(key, new Digest(Long.parseLong(values[0]), Long.parseLong(values[1]), values[2]));
+                } catch (NumberFormatException e) {
+                    LOG.debug("Ignoring invalid digest index entry {}", key);
+                }
+            }
+        }
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            try {
+                FLUSHER.schedule(this::flush, FLUSH_DELAY, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // stopped by a newer version of the script, a request still in flight saves it itself
+                flush();
+            }
+        }
+    }
+
+    private void flush() {
+        flushScheduled.set(false);
+        Properties properties = new Properties();
+        digests.forEach((key, digest) -> properties.setProperty(key,
+                digest.length + ":" + digest.lastModified + ":" + digest.hash));
+        try {
+            Path tempPath = indexPath.resolveSibling(INDEX_FILE + ".tmp");
+            try (Writer writer = Files.newBufferedWriter(tempPath, StandardCharsets.UTF_8)) {
+                properties.store(writer, null);
+            }
+            Files.move(tempPath, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.warn("Failed to save digest index {}", indexPath, e);
+        }
+    }
+
+    private static class Digest {
+        private final long length;
+        private final long lastModified;
+        private final String hash;
+
+        private Digest(long length, long lastModified, String hash) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+    }
+}
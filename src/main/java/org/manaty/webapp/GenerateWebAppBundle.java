@@ -0,0 +1,89 @@
+/*
+ * (C) Copyright 2018-2019 Manaty SARL (https://manaty.net) and contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Affero General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. This program is
+ * not suitable for any direct or indirect application in MILITARY industry See the GNU Affero
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.manaty.webapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+import org.meveo.admin.exception.BusinessException;
+import org.meveo.commons.utils.ParamBean;
+import org.meveo.commons.utils.ParamBeanFactory;
+import org.meveo.service.git.GitHelper;
+import org.meveo.service.script.Script;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Packs the files of a web application into a single bundle served by
+ * {@link WebApp} from a memory mapping. The bundle is written as
+ * {@code webapp/<appCode>-UI.bundle} and picked up by the running
+ * applications within a second. By default the git repository of the
+ * application is packed.
+ */
+public class GenerateWebAppBundle extends Script {
+
+    private static final Logger LOG = LoggerFactory.getLogger(GenerateWebAppBundle.class);
+    private static final String AFFIX = "-UI";
+
+    private ParamBeanFactory paramBeanFactory = getCDIBean(ParamBeanFactory.class);
+    private ParamBean config = paramBeanFactory.getInstance();
+
+    private String appCode;
+    private String sourceDirectory;
+    private Object result;
+
+    public Object getResult() {
+        return result;
+    }
+
+    public void setAppCode(String appCode) {
+        this.appCode = appCode;
+    }
+
+    /**
+     * @param sourceDirectory The directory to pack instead of the git repository
+     *                        of the application
+     */
+    public void setSourceDirectory(String sourceDirectory) {
+        this.sourceDirectory = sourceDirectory;
+    }
+
+    @Override
+    public void execute(Map<String, Object> parameters) throws BusinessException {
+        if (appCode == null || appCode.isEmpty()) {
+            throw new BusinessException("appCode is required");
+        }
+        String basePath = config.getProperty("providers.rootDir", File.separator + "meveodata");
+        String rootDirectory = config.getProperty("provider.rootDir", "default");
+        String webappPath = basePath + File.separator + rootDirectory + File.separator + "webapp" + File.separator;
+        File directory = sourceDirectory == null || sourceDirectory.isEmpty()
+                ? GitHelper.getRepositoryDir(null, appCode + AFFIX)
+                : new File(sourceDirectory);
+        if (!directory.isDirectory()) {
+            throw new BusinessException("Directory " + directory + " does not exist");
+        }
+        File target = new File(webappPath + appCode + AFFIX + WebAppBundle.EXTENSION);
+        target.getParentFile().mkdirs();
+        try {
+            int count = WebAppBundle.write(directory, target);
+            LOG.info("Packed {} files of {} into {}", count, directory, target);
+            result = target.getAbsolutePath();
+        } catch (IOException e) {
+            throw new BusinessException("Failed to pack " + directory, e);
+        }
+    }
+}
@@ -0,0 +1,365 @@
+/*
+ * (C) Copyright 2018-2019 Manaty SARL (https://manaty.net) and contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Affero General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. This program is
+ * not suitable for any direct or indirect application in MILITARY industry See the GNU Affero
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.manaty.webapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.meveo.model.storage.Repository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resolves the files of an application against the tree of a pinned git ref,
+ * reading the blobs from the object database instead of the working tree. The
+ * ref is resolved again periodically, so a deploy is a single ref update and
+ * the blobs that did not change keep their ETag and cache entries.
+ */
+class GitTreeSource {
+
+    static final long DEFAULT_REFRESH_INTERVAL = 1000L;
+
+    private static final Logger LOG = LoggerFactory.getLogger(GitTreeSource.class);
+    private static final Map<String, GitTreeSource> SOURCES = new ConcurrentHashMap<>();
+    private static final Blob NOT_FOUND = new Blob(null, null, false);
+    private static final Blob DIRECTORY = new Blob(null, null, false);
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_PATHS = 10000;
+    private static final String INDEX_FILE = "index.html";
+
+    static {
+        WebAppService.register("git-sources", GitTreeSource::closeAll);
+    }
+
+    /**
+     * A file of the pinned tree.
+     */
+    static class Blob {
+        private final String path;
+        private final ObjectId id;
+        private final boolean indexTemplate;
+
+        Blob(String path, ObjectId id, boolean indexTemplate) {
+            this.path = path;
+            this.id = id;
+            this.indexTemplate = indexTemplate;
+        }
+
+        String getPath() {
+            return path;
+        }
+
+        String getName() {
+            return path.substring(path.lastIndexOf('/') + 1);
+        }
+
+        ObjectId getId() {
+            return id;
+        }
+
+        /**
+         * @return true if the blob is the index.html template of the application
+         */
+        boolean isIndexTemplate() {
+            return indexTemplate;
+        }
+    }
+
+    private final org.eclipse.jgit.lib.Repository repository;
+    private final String ref;
+    private final long refreshInterval;
+    private final long failedAt;
+    private volatile Snapshot snapshot;
+
+    private GitTreeSource(org.eclipse.jgit.lib.Repository repository, String ref, long refreshInterval,
+            long failedAt) {
+        this.repository = repository;
+        this.ref = ref;
+        this.refreshInterval = refreshInterval;
+        this.failedAt = failedAt;
+    }
+
+    /**
+     * Returns the source of the given repository and ref, the repository is
+     * opened once and shared by the contexts serving it. A repository that
+     * cannot be opened is not tried again before the refresh interval elapsed.
+     *
+     * @param workTree        The working tree of the git repository
+     * @param ref             The ref, commit id or tag to serve
+     * @param refreshInterval Delay in milliseconds after which the ref is
+     *                        resolved again
+     * @return The source, or null if the repository cannot be opened
+     */
+    static GitTreeSource open(File workTree, String ref, long refreshInterval) {
+        String key = workTree.getAbsolutePath() + "@" + ref;
+        GitTreeSource source = SOURCES.get(key);
+        if (source == null || source.isRetryDue()) {
+            source = SOURCES.compute(key, (k, previous) -> {
+                if (previous != null && !previous.isRetryDue()) {
+                    return previous;
+                }
+                try {
+                    org.eclipse.jgit.lib.Repository repository = new FileRepositoryBuilder()
+                            .setGitDir(new File(workTree, ".git"))
+                            .setMustExist(true)
+                            .build();
+                    return new GitTreeSource(repository, ref, refreshInterval, 0);
+                } catch (IOException e) {
+                    LOG.warn("Cannot open git repository {}, files are served from the working tree", workTree,
+                            e);
+                    return new GitTreeSource(null, ref, refreshInterval, System.currentTimeMillis());
+                }
+            });
+        }
+        return source.repository != null ? source : null;
+    }
+
+    /**
+     * Closes the repositories opened by this version of the script, it is
+     * called when a new version registers its sources.
+     */
+    static void closeAll() {
+        for (Iterator<GitTreeSource> sources = SOURCES.values().iterator(); sources.hasNext();) {
+            GitTreeSource source = sources.next();
+            sources.remove();
+            if (source.repository != null) {
+                source.repository.close();
+            }
+        }
+    }
+
+    /**
+     * @return true if the repository could not be opened and the refresh
+     *         interval elapsed since
+     */
+    private boolean isRetryDue() {
+        return repository == null && System.currentTimeMillis() - failedAt >= refreshInterval;
+    }
+
+    String getRef() {
+        return ref;
+    }
+
+    /**
+     * Resolves a request path the same way it is resolved in the working tree: a
+     * directory serves its index.html and unknown paths fall back to the index
+     * template of the application. Resolutions are cached with the tree they
+     * were made against.
+     *
+     * @param remainingPath The path requested under the application
+     * @return The blob to serve, or null if the ref or the path cannot be
+     *         resolved
+     * @throws IOException if the object database cannot be read
+     */
+    Blob resolve(String remainingPath) throws IOException {
+        Snapshot current = current();
+        if (current == null) {
+            return null;
+        }
+        Blob blob = current.paths.get(remainingPath);
+        if (blob == null) {
+            blob = lookup(current, remainingPath);
+            if (current.paths.size() >= MAX_PATHS) {
+                current.paths.clear();
+            }
+            current.paths.put(remainingPath, blob);
+        }
+        return blob == NOT_FOUND ? null : blob;
+    }
+
+    /**
+     * Loads a blob as an asset. Blobs above the stream threshold are not read in
+     * memory, they are streamed from the object database when served.
+     *
+     * @param key             The key of the asset
+     * @param blob            The blob to load
+     * @param contentType     The content type of the blob
+     * @param streamThreshold Size above which the blob is streamed
+     * @return The asset, with the blob id as ETag and no last modification
+     *         date: the time of the served commit would change with every
+     *         commit, even for the blobs it did not touch
+     * @throws IOException if the blob cannot be read
+     */
+    StaticAsset load(String key, Blob blob, String contentType, long streamThreshold) throws IOException {
+        ObjectLoader loader = repository.open(blob.getId());
+        String eTag = "\"" + blob.getId().name() + "\"";
+        if (loader.getSize() > streamThreshold) {
+            return new StaticAsset(key, loader.getSize(), StaticAsset.NO_LAST_MODIFIED, contentType, eTag, null,
+                    source(blob.getId()));
+        }
+        byte[] content = loader.getBytes();
+        return new StaticAsset(key, content.length, StaticAsset.NO_LAST_MODIFIED, contentType, eTag, content);
+    }
+
+    /**
+     * @param blob A blob
+     * @return the content of the blob decoded as UTF-8
+     * @throws IOException if the blob cannot be read
+     */
+    String read(Blob blob) throws IOException {
+        return new String(repository.open(blob.getId()).getBytes(), StandardCharsets.UTF_8);
+    }
+
+    private StaticAsset.ContentSource source(ObjectId id) {
+        return (start, length, output) -> {
+            try (InputStream input = repository.open(id).openStream()) {
+                long skipped = 0;
+                while (skipped < start) {
+                    long count = input.skip(start - skipped);
+                    if (count <= 0) {
+                        if (input.read() < 0) {
+                            return;
+                        }
+                        count = 1;
+                    }
+                    skipped += count;
+                }
+                byte[] buffer = new byte[BUFFER_SIZE];
+                long remaining = length;
+                while (remaining > 0) {
+                    int read = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read < 0) {
+                        break;
+                    }
+                    output.write(buffer, 0, read);
+                    remaining -= read;
+                }
+            }
+        };
+    }
+
+    /**
+     * @return the tree the ref currently points to, resolved again once the
+     *         refresh interval elapsed
+     */
+    private Snapshot current() throws IOException {
+        Snapshot current = snapshot;
+        long now = System.currentTimeMillis();
+        if (current != null && now - current.checkedAt < refreshInterval) {
+            return current;
+        }
+        synchronized (this) {
+            current = snapshot;
+            if (current != null && now - current.checkedAt < refreshInterval) {
+                return current;
+            }
+            ObjectId commitId = repository.resolve(ref);
+            if (commitId == null) {
+                LOG.warn("Ref {} cannot be resolved in {}", ref, repository);
+                // keep serving the last known tree
+                if (current != null) {
+                    current.checkedAt = now;
+                }
+                return current;
+            }
+            if (current != null && current.commitId.equals(commitId)) {
+                current.checkedAt = now;
+                return current;
+            }
+            try (RevWalk walk = new RevWalk(repository)) {
+                RevCommit commit = walk.parseCommit(commitId);
+                LOG.info("Serving {} at {}", ref, commitId.name());
+                snapshot = new Snapshot(commitId, commit.getTree(), now);
+                return snapshot;
+            }
+        }
+    }
+
+    private Blob lookup(Snapshot current, String remainingPath) throws IOException {
+        String path = normalize(URLDecoder.decode(remainingPath, "UTF-8"));
+        if (path == null) {
+            return NOT_FOUND;
+        }
+        Blob blob = path.isEmpty() ? DIRECTORY : find(current, path, false);
+        if (blob == DIRECTORY) {
+            // like in the working tree, a directory serves the index.html of its
+            // first segment
+            int subFolderIndex = path.indexOf('/');
+            String subFolder = subFolderIndex > -1 ? path.substring(0, subFolderIndex) : path;
+            blob = find(current, subFolder.isEmpty() ? INDEX_FILE
+                    : subFolder + "/" + INDEX_FILE, false);
+        }
+        if (blob == NOT_FOUND || blob == DIRECTORY) {
+            blob = find(current, INDEX_FILE, true);
+        }
+        return blob == DIRECTORY ? NOT_FOUND : blob;
+    }
+
+    private Blob find(Snapshot current, String path, boolean indexTemplate) throws IOException {
+        try (TreeWalk walk = TreeWalk.forPath(repository, path, current.tree)) {
+            if (walk == null) {
+                return NOT_FOUND;
+            }
+            int type = walk.getFileMode(0).getObjectType();
+            if (type == Constants.OBJ_TREE) {
+                return DIRECTORY;
+            }
+            if (type != Constants.OBJ_BLOB) {
+                return NOT_FOUND;
+            }
+            return new Blob(path, walk.getObjectId(0), indexTemplate);
+        }
+    }
+
+    /**
+     * @return the path relative to the root of the tree, or null if it points
+     *         outside of the tree
+     */
+    static String normalize(String path) {
+        StringBuilder normalized = new StringBuilder(path.length());
+        for (String segment : path.replace('\\', '/').split("/")) {
+            if (segment.isEmpty() || ".".equals(segment)) {
+                continue;
+            }
+            if ("..".equals(segment)) {
+                // paths cannot escape the tree
+                return null;
+            }
+            if (normalized.length() > 0) {
+                normalized.append('/');
+            }
+            normalized.append(segment);
+        }
+        return normalized.toString();
+    }
+
+    private static class Snapshot {
+        private final ObjectId commitId;
+        private final AnyObjectId tree;
+        private final Map<String, Blob> paths = new ConcurrentHashMap<>();
+        private volatile long checkedAt;
+
+        private Snapshot(ObjectId commitId, AnyObjectId tree, long checkedAt) {
+            this.commitId = commitId;
+            this.tree = tree;
+            this.checkedAt = checkedAt;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * (C) Copyright 2018-2019 Manaty SARL (https://manaty.net) and contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Affero General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. This program is
+ * not suitable for any direct or indirect application in MILITARY industry See the GNU Affero
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.manaty.webapp;
+
+/**
+ * Single-pass parsing of the list headers checked on each request (Accept,
+ * Accept-Encoding, If-Match and If-None-Match). Headers are scanned in place
+ * with indexes, nothing is allocated.
+ */
+final class HeaderTokenizer {
+
+    private HeaderTokenizer() {
+    }
+
+    /**
+     * Returns true if the Accept header accepts the media type. The most specific
+     * matching range decides, so a type listed with q=0 is rejected even when a
+     * wildcard range accepts it.
+     *
+     * @param header    The Accept header
+     * @param mediaType The media type, its parameters are ignored
+     * @return true if the media type is acceptable
+     */
+    static boolean acceptsMediaType(String header, String mediaType) {
+        int typeEnd = trimEnd(mediaType, 0, indexOf(mediaType, ';', 0, mediaType.length()));
+        int slash = indexOf(mediaType, '/', 0, typeEnd);
+        int best = 0;
+        boolean accepted = false;
+        int length = header.length();
+        for (int position = 0; position < length; position++) {
+            int end = elementEnd(header, position);
+            int start = skipSpaces(header, position, end);
+            int rangeEnd = trimEnd(header, start, indexOf(header, ';', start, end));
+            int rangeLength = rangeEnd - start;
+            int specificity = 0;
+            if (rangeLength == 3 && header.startsWith("*/*", start)) {
+                specificity = 1;
+            } else if (slash < typeEnd && rangeLength == slash + 2 && header.charAt(rangeEnd - 1) == '*'
+                    && header.regionMatches(true, start, mediaType, 0, slash + 1)) {
+                specificity = 2;
+            } else if (rangeLength == typeEnd && header.regionMatches(true, start, mediaType, 0, typeEnd)) {
+                specificity = 3;
+            }
+            if (specificity > best) {
+                best = specificity;
+                accepted = hasPositiveQuality(header, rangeEnd, end);
+            }
+            position = end;
+        }
+        return accepted;
+    }
+
+    /**
+     * Returns true if the Accept-Encoding header accepts the content coding. An
+     * explicit entry for the coding takes precedence over {@code *}.
+     *
+     * @param header The Accept-Encoding header
+     * @param coding The content coding
+     * @return true if the coding is acceptable
+     */
+    static boolean acceptsCoding(String header, String coding) {
+        int best = 0;
+        boolean accepted = false;
+        int length = header.length();
+        for (int position = 0; position < length; position++) {
+            int end = elementEnd(header, position);
+            int start = skipSpaces(header, position, end);
+            int codingEnd = trimEnd(header, start, indexOf(header, ';', start, end));
+            int codingLength = codingEnd - start;
+            int specificity = 0;
+            if (codingLength == 1 && header.charAt(start) == '*') {
+                specificity = 1;
+            } else if (codingLength == coding.length() && header.regionMatches(true, start, coding, 0, codingLength)) {
+                specificity = 2;
+            }
+            if (specificity > best) {
+                best = specificity;
+                accepted = hasPositiveQuality(header, codingEnd, end);
+            }
+            position = end;
+        }
+        return accepted;
+    }
+
+    /**
+     * Returns true if an If-Match or If-None-Match header matches the entity tag.
+     * With the weak comparison, used by If-None-Match, {@code W/"x"} matches
+     * {@code "x"}. With the strong comparison, used by If-Match, weak tags never
+     * match.
+     *
+     * @param header The header value, {@code *} or a list of entity tags
+     * @param eTag   The entity tag of the representation, quoted
+     * @param weak   true to use the weak comparison
+     * @return true if the header matches the entity tag
+     */
+    static boolean matchesETag(String header, String eTag, boolean weak) {
+        boolean eTagWeak = eTag.startsWith("W/");
+        if (eTagWeak && !weak) {
+            return false;
+        }
+        int opaqueStart = eTagWeak ? 2 : 0;
+        int opaqueLength = eTag.length() - opaqueStart;
+        int length = header.length();
+        for (int position = 0; position < length; position++) {
+            int end = elementEnd(header, position);
+            int start = skipSpaces(header, position, end);
+            int tagEnd = trimEnd(header, start, end);
+            if (tagEnd - start == 1 && header.charAt(start) == '*') {
+                return true;
+            }
+            if (header.startsWith("W/", start)) {
+                if (!weak) {
+                    position = end;
+                    continue;
+                }
+                start += 2;
+            }
+            if (tagEnd - start == opaqueLength && header.regionMatches(start, eTag, opaqueStart, opaqueLength)) {
+                return true;
+            }
+            // tolerate clients sending the entity tag without its quotes
+            if (tagEnd - start == opaqueLength - 2 && header.charAt(start) != '"'
+                    && header.regionMatches(start, eTag, opaqueStart + 1, opaqueLength - 2)) {
+                return true;
+            }
+            position = end;
+        }
+        return false;
+    }
+
+    /**
+     * @return false if the parameters between start and end hold a q-value of 0
+     */
+    private static boolean hasPositiveQuality(String header, int start, int end) {
+        int position = start;
+        while (position < end) {
+            int parameterStart = skipSpaces(header, position + 1, end);
+            int parameterEnd = indexOf(header, ';', parameterStart, end);
+            if (parameterEnd - parameterStart >= 2 && (header.charAt(parameterStart) == 'q'
+                    || header.charAt(parameterStart) == 'Q')) {
+                int equals = skipSpaces(header, parameterStart + 1, parameterEnd);
+                if (equals < parameterEnd && header.charAt(equals) == '=') {
+                    for (int i = equals + 1; i < parameterEnd; i++) {
+                        char c = header.charAt(i);
+                        if (c >= '1' && c <= '9') {
+                            return true;
+                        }
+                    }
+                    return false;
+                }
+            }
+            position = parameterEnd;
+        }
+        return true;
+    }
+
+    /**
+     * @return the index of the comma ending the element starting at position, or
+     *         the length of the header, commas in quoted strings are skipped
+     */
+    private static int elementEnd(String header, int position) {
+        boolean quoted = false;
+        int length = header.length();
+        for (int i = position; i < length; i++) {
+            char c = header.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == '\\' && quoted) {
+                i++;
+            } else if (c == ',' && !quoted) {
+                return i;
+            }
+        }
+        return length;
+    }
+
+    private static int indexOf(String value, char c, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (value.charAt(i) == c) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private static int skipSpaces(String value, int start, int end) {
+        int position = start;
+        while (position < end && (value.charAt(position) == ' ' || value.charAt(position) == '\t')) {
+            position++;
+        }
+        return position;
+    }
+
+    private static int trimEnd(String value, int start, int end) {
+        int position = end;
+        while (position > start && (value.charAt(position - 1) == ' ' || value.charAt(position - 1) == '\t')) {
+            position--;
+        }
+        return position;
+    }
+}
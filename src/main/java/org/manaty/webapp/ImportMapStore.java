@@ -0,0 +1,147 @@
+/*
+ * (C) Copyright 2018-2019 Manaty SARL (https://manaty.net) and contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Affero General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. This program is
+ * not suitable for any direct or indirect application in MILITARY industry See the GNU Affero
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.manaty.webapp;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Import maps published by GenerateImportMap, held in memory with an ETag
+ * computed from their content. Each map is served, from the directory it was
+ * generated in, both as JSON and as the script setting
+ * {@code window.importmap}, in place of the importmap.js written there until
+ * that file changes.
+ */
+class ImportMapStore {
+
+    static final String JSON_FILE = "importmap.json";
+    static final String JS_FILE = "importmap.js";
+    static final String JSON_TYPE = "application/importmap+json";
+
+    private final Map<String, Published> maps = new ConcurrentHashMap<>();
+
+    /**
+     * @param appCode   The code of the web application
+     * @param directory The requested path of the directory the map was
+     *                  generated in, empty for the root of the application
+     * @param source    The importmap.js written for the map
+     * @param json      The import map, replacing the previous one of the
+     *                  directory
+     */
+    void put(String appCode, String directory, File source, String json) {
+        long lastModified = System.currentTimeMillis();
+        byte[] content = json.getBytes(StandardCharsets.UTF_8);
+        byte[] script = ("window.importmap = " + json + ";").getBytes(StandardCharsets.UTF_8);
+        String jsonPath = directory + "/" + JSON_FILE;
+        String jsPath = directory + "/" + JS_FILE;
+        maps.put(key(appCode, jsonPath), new Published(new StaticAsset("importmap:" + appCode + jsonPath,
+                content.length, lastModified, JSON_TYPE, "\"" + DigestIndex.hash(content) + "\"", content), source));
+        maps.put(key(appCode, jsPath), new Published(new StaticAsset("importmap:" + appCode + jsPath, script.length,
+                lastModified, "application/javascript", "\"" + DigestIndex.hash(script) + "\"", script), source));
+    }
+
+    /**
+     * @param appCode       The code of the web application
+     * @param remainingPath The requested path
+     * @return the published import map if the path is one of its paths and its
+     *         importmap.js did not change since, null otherwise
+     */
+    StaticAsset get(String appCode, String remainingPath) {
+        if (!remainingPath.endsWith("/" + JSON_FILE) && !remainingPath.endsWith("/" + JS_FILE)) {
+            return null;
+        }
+        String key = key(appCode, remainingPath);
+        Published published = maps.get(key);
+        if (published == null) {
+            return null;
+        }
+        if (!published.isFresh()) {
+            maps.remove(key, published);
+            return null;
+        }
+        return published.asset;
+    }
+
+    /**
+     * Drops the maps of an application whose importmap.js changed, among the
+     * given files and directories.
+     *
+     * @param appCode The code of the web application
+     * @param changed The files and directories that changed
+     */
+    void invalidate(String appCode, Collection<Path> changed) {
+        String prefix = appCode + "|";
+        maps.entrySet().removeIf(entry -> entry.getKey().startsWith(prefix) && !entry.getValue().isFresh()
+                && changed.stream().anyMatch(path -> LookupCache.isUnder(entry.getValue().source.getAbsolutePath(),
+                        path.toFile().getAbsolutePath())));
+    }
+
+    /**
+     * Drops the maps of an application whose path starts with the given prefix.
+     *
+     * @param appCode    The code of the web application
+     * @param pathPrefix The beginning of the requested paths, empty for every map
+     *                   of the application
+     */
+    void invalidateApp(String appCode, String pathPrefix) {
+        String prefix = key(appCode, pathPrefix);
+        maps.keySet().removeIf(key -> key.startsWith(prefix));
+    }
+
+    /**
+     * Drops the maps generated in the given directory, whatever their
+     * application.
+     *
+     * @param directory The directory the maps were generated in
+     */
+    void invalidateDirectory(File directory) {
+        File source = new File(directory, JS_FILE).getAbsoluteFile();
+        maps.values().removeIf(published -> published.source.equals(source));
+    }
+
+    int size() {
+        return maps.size();
+    }
+
+    private static String key(String appCode, String path) {
+        return appCode + "|" + path;
+    }
+
+    /**
+     * A map with the state of the importmap.js it replaces.
+     */
+    private static class Published {
+        private final StaticAsset asset;
+        private final File source;
+        private final long lastModified;
+        private final long length;
+
+        private Published(StaticAsset asset, File source) {
+            this.asset = asset;
+            this.source = source.getAbsoluteFile();
+            this.lastModified = source.lastModified();
+            this.length = source.length();
+        }
+
+        private boolean isFresh() {
+            return source.lastModified() == lastModified && source.length() == length;
+        }
+    }
+}
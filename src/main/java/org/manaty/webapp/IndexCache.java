@@ -0,0 +1,189 @@
+/*
+ * (C) Copyright 2018-2019 Manaty SARL (https://manaty.net) and contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Affero General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. This program is
+ * not suitable for any direct or indirect application in MILITARY industry See the GNU Affero
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.manaty.webapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of the index.html rendered from the template of each application.
+ * Entries are keyed by template and base href and are rendered again when the
+ * template changes. Concurrent requests for a missing entry wait for a single
+ * rendering.
+ */
+class IndexCache {
+
+    /**
+     * Renders the contents of an index.html template.
+     */
+    @FunctionalInterface
+    interface Renderer {
+        String render(String templateContents);
+    }
+
+    private final Map<String, Rendered> entries = new ConcurrentHashMap<>();
+
+    /**
+     * @param template The index.html template
+     * @param baseHref The base URL the index is rendered for
+     * @param trusted  true if the template is watched, in which case a cached
+     *                 index is returned without checking the template
+     * @param renderer Renders the template when it is not cached
+     * @return The rendered index
+     * @throws IOException if the template cannot be read
+     */
+    StaticAsset get(File template, String baseHref, boolean trusted, Renderer renderer) throws IOException {
+        String key = template.getAbsolutePath() + "|" + baseHref;
+        if (trusted) {
+            Rendered rendered = entries.get(key);
+            if (rendered != null) {
+                return rendered.asset;
+            }
+        }
+        long length = template.length();
+        long lastModified = template.lastModified();
+        Rendered rendered = entries.get(key);
+        if (rendered != null && rendered.isFresh(length, lastModified)) {
+            return rendered.asset;
+        }
+        try {
+            return entries.compute(key, (k, current) -> {
+                if (current != null && current.isFresh(length, lastModified)) {
+                    return current;
+                }
+                try {
+                    String contents = new String(Files.readAllBytes(template.toPath()), StandardCharsets.UTF_8);
+                    byte[] content = renderer.render(contents).getBytes(StandardCharsets.UTF_8);
+                    StaticAsset asset = new StaticAsset(k, content.length, lastModified, "text/html",
+                            "\"" + DigestIndex.hash(content) + "\"", content);
+                    return new Rendered(length, lastModified, asset);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }).asset;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Loads the contents of a template that is not a file.
+     */
+    @FunctionalInterface
+    interface TemplateLoader {
+        String load() throws IOException;
+    }
+
+    /**
+     * Returns the index rendered from a template that never changes once it is
+     * identified, like a git blob.
+     *
+     * @param key          The key of the template and base href
+     * @param lastModified The last modification date of the template
+     * @param loader       Loads the template when it is not cached
+     * @param renderer     Renders the template when it is not cached
+     * @return The rendered index
+     * @throws IOException if the template cannot be read
+     */
+    StaticAsset get(String key, long lastModified, TemplateLoader loader, Renderer renderer) throws IOException {
+        Rendered rendered = entries.get(key);
+        if (rendered != null) {
+            return rendered.asset;
+        }
+        try {
+            return entries.computeIfAbsent(key, k -> {
+                try {
+                    byte[] content = renderer.render(loader.load()).getBytes(StandardCharsets.UTF_8);
+                    StaticAsset asset = new StaticAsset(k, content.length, lastModified, "text/html",
+                            "\"" + DigestIndex.hash(content) + "\"", content);
+                    return new Rendered(-1, lastModified, asset);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }).asset;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Drops the rendered indexes of the given template.
+     *
+     * @param template The index.html template
+     */
+    void invalidate(File template) {
+        String prefix = template.getAbsolutePath() + "|";
+        entries.keySet().removeIf(key -> key.startsWith(prefix));
+    }
+
+    /**
+     * Drops the rendered indexes of the templates under the given directory.
+     *
+     * @param path An absolute path
+     */
+    void invalidatePrefix(String path) {
+        entries.keySet().removeIf(key -> LookupCache.isUnder(key.substring(0, key.lastIndexOf('|')), path));
+    }
+
+    /**
+     * Drops the indexes rendered for the given application, whatever their
+     * template.
+     *
+     * @param appCode The code of the web application
+     */
+    void invalidateApp(String appCode) {
+        String suffix = "/" + appCode + "/";
+        entries.keySet().removeIf(key -> key.endsWith(suffix));
+    }
+
+    void clear() {
+        entries.clear();
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * @param appCode The code of the web application
+     * @return the number of indexes rendered for the application
+     */
+    int size(String appCode) {
+        String suffix = "/" + appCode + "/";
+        return (int) entries.keySet().stream().filter(key -> key.endsWith(suffix)).count();
+    }
+
+    private static class Rendered {
+        private final long templateLength;
+        private final long templateLastModified;
+        private final StaticAsset asset;
+
+        private Rendered(long templateLength, long templateLastModified, StaticAsset asset) {
+            this.templateLength = templateLength;
+            this.templateLastModified = templateLastModified;
+            this.asset = asset;
+        }
+
+        private boolean isFresh(long length, long lastModified) {
+            return templateLength == length && templateLastModified == lastModified;
+        }
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * (C) Copyright 2018-2019 Manaty SARL (https://manaty.net) and contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Affero General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. This program is
+ * not suitable for any direct or indirect application in MILITARY industry See the GNU Affero
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.manaty.webapp;
+
+import java.io.File;
+import java.net.URLDecoder;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiPredicate;
+
+/**
+ * Cache of the files resolved by {@link WebApp} for each (appCode,
+ * remainingPath), so that steady-state requests cost a single map lookup.
+ * Paths that could not be resolved are cached as well. When the directories of
+ * the application are not watched, resolutions expire so that new files are
+ * eventually seen, misses sooner than hits. Each application keeps its most
+ * recently used paths.
+ */
+class LookupCache {
+
+    static final long DEFAULT_TTL = 30000L;
+    static final long DEFAULT_NEGATIVE_TTL = 5000L;
+    static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    /**
+     * Result of the resolution of a path.
+     */
+    static class Entry {
+        private final File file;
+        private final boolean indexTemplate;
+        private final long resolvedAt = System.currentTimeMillis();
+
+        Entry(File file, boolean indexTemplate) {
+            this.file = file;
+            this.indexTemplate = indexTemplate;
+        }
+
+        /**
+         * @return the resolved file, or null if the path was not found
+         */
+        File getFile() {
+            return file;
+        }
+
+        /**
+         * @return true if the file is the index.html template of the application,
+         *         which must be rendered before being served
+         */
+        boolean isIndexTemplate() {
+            return indexTemplate;
+        }
+    }
+
+    private final Map<String, Entries> apps = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private volatile long ttl = DEFAULT_TTL;
+    private volatile long negativeTtl = DEFAULT_NEGATIVE_TTL;
+    private volatile int maxEntries = DEFAULT_MAX_ENTRIES;
+
+    /**
+     * @param ttl         How long a resolved path is kept when the application is
+     *                    not watched, in milliseconds
+     * @param negativeTtl How long a path that was not found is kept when the
+     *                    application is not watched, in milliseconds
+     * @param maxEntries  The number of paths kept for each application
+     */
+    void configure(long ttl, long negativeTtl, int maxEntries) {
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @param appCode       The code of the web application
+     * @param remainingPath The requested path
+     * @param watched       true if the directories of the application are
+     *                      watched, in which case resolutions do not expire
+     * @return the cached resolution, or null if the path must be resolved
+     */
+    Entry get(String appCode, String remainingPath, boolean watched) {
+        Entries entries = apps.get(appCode);
+        Entry entry = entries == null ? null : entries.get(remainingPath);
+        if (entry != null && !watched
+                && System.currentTimeMillis() - entry.resolvedAt > (entry.file == null ? negativeTtl : ttl)) {
+            entries.remove(remainingPath, entry);
+            entry = null;
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            if (entries != null) {
+                entries.misses.increment();
+            }
+        } else {
+            hits.incrementAndGet();
+            entries.hits.increment();
+        }
+        return entry;
+    }
+
+    /**
+     * @param appCode       The code of the web application
+     * @param remainingPath The requested path
+     * @param entry         The resolution of the path
+     */
+    void put(String appCode, String remainingPath, Entry entry) {
+        // unbounded distinct paths (e.g. crawlers probing for files) only evict the least recently used
+        apps.computeIfAbsent(appCode, key -> new Entries()).put(remainingPath, entry, maxEntries);
+    }
+
+    /**
+     * Drops every resolution of the given application.
+     *
+     * @param appCode The code of the web application
+     */
+    void invalidate(String appCode) {
+        apps.remove(appCode);
+    }
+
+    /**
+     * Drops the resolutions of the given application that a change may affect:
+     * the misses and the index template fallbacks, which may now resolve to a
+     * file, the resolutions to the changed files or to files under the changed
+     * directories, and the requested paths matching a changed file in any of the
+     * roots, which may now be shadowed by a file of another root.
+     *
+     * @param appCode The code of the web application
+     * @param changed The files and directories that changed
+     * @param roots   The directories the requested paths are resolved in
+     */
+    void invalidate(String appCode, Collection<Path> changed, Collection<Path> roots) {
+        Entries entries = apps.get(appCode);
+        if (entries == null) {
+            return;
+        }
+        List<String> prefixes = new ArrayList<>(changed.size());
+        List<String> requestPaths = new ArrayList<>(changed.size());
+        for (Path path : changed) {
+            prefixes.add(path.toFile().getAbsolutePath());
+            for (Path root : roots) {
+                if (path.startsWith(root)) {
+                    requestPaths.add("/" + root.relativize(path).toString().replace(File.separatorChar, '/'));
+                }
+            }
+        }
+        entries.removeIf((path, entry) -> entry.file == null || entry.indexTemplate
+                || prefixes.stream().anyMatch(prefix -> isUnder(entry.file.getAbsolutePath(), prefix))
+                || requestPaths.stream().anyMatch(requestPath -> isRelated(decode(path), requestPath)));
+    }
+
+    /**
+     * @return true if one of the paths is the other or a path under it
+     */
+    private static boolean isRelated(String path, String other) {
+        String normalized = path.length() > 1 && path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+        return isUnder(normalized, other, '/') || isUnder(other, normalized, '/');
+    }
+
+    private static String decode(String path) {
+        try {
+            return URLDecoder.decode(path, "UTF-8");
+        } catch (IllegalArgumentException | java.io.UnsupportedEncodingException e) {
+            return path;
+        }
+    }
+
+    /**
+     * Drops the resolutions of the requested paths starting with the given
+     * prefix.
+     *
+     * @param appCode    The code of the web application
+     * @param pathPrefix The beginning of the requested paths
+     */
+    void invalidatePath(String appCode, String pathPrefix) {
+        Entries entries = apps.get(appCode);
+        if (entries != null) {
+            entries.removeIf((path, entry) -> path.startsWith(pathPrefix));
+        }
+    }
+
+    /**
+     * @param path   An absolute path
+     * @param prefix An absolute path
+     * @return true if the path is the prefix or a path under it
+     */
+    static boolean isUnder(String path, String prefix) {
+        return isUnder(path, prefix, File.separatorChar);
+    }
+
+    private static boolean isUnder(String path, String prefix, char separator) {
+        return path.startsWith(prefix) && (path.length() == prefix.length() || prefix.endsWith(String.valueOf(separator))
+                || path.charAt(prefix.length()) == separator);
+    }
+
+    void clear() {
+        apps.clear();
+    }
+
+    int size(String appCode) {
+        Entries entries = apps.get(appCode);
+        return entries == null ? 0 : entries.size();
+    }
+
+    /**
+     * @param appCode The code of the web application
+     * @return the ratio of the lookups of the application answered from the
+     *         cache since its entries were last dropped
+     */
+    double getHitRatio(String appCode) {
+        Entries entries = apps.get(appCode);
+        if (entries == null) {
+            return 0;
+        }
+        long hitCount = entries.hits.sum();
+        long total = hitCount + entries.misses.sum();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    long getTtl() {
+        return ttl;
+    }
+
+    long getNegativeTtl() {
+        return negativeTtl;
+    }
+
+    int getMaxEntries() {
+        return maxEntries;
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Resolutions of one application in access order, with their hit counters.
+     */
+    private static class Entries {
+        private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+
+        synchronized Entry get(String path) {
+            return entries.get(path);
+        }
+
+        synchronized void put(String path, Entry entry, int maxEntries) {
+            entries.put(path, entry);
+            Iterator<Entry> iterator = entries.values().iterator();
+            while (entries.size() > maxEntries && iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+            }
+        }
+
+        synchronized void remove(String path, Entry entry) {
+            entries.remove(path, entry);
+        }
+
+        synchronized void removeIf(BiPredicate<String, Entry> filter) {
+            entries.entrySet().removeIf(entry -> filter.test(entry.getKey(), entry.getValue()));
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+    }
+}
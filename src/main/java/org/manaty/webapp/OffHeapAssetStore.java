@@ -0,0 +1,314 @@
+/*
+ * (C) Copyright 2018-2019 Manaty SARL (https://manaty.net) and contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Affero General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. This program is
+ * not suitable for any direct or indirect application in MILITARY industry See the GNU Affero
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.manaty.webapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Second tier of the {@link AssetCache} for the files above the stream
+ * threshold. Their content is held in direct buffers, outside of the Java
+ * heap, with its own byte budget and LRU eviction, so large fonts, images and
+ * source maps do not add to the heap or to GC pauses. The memory of an evicted
+ * entry is released once the buffer is no longer referenced by a response.
+ */
+class OffHeapAssetStore {
+
+    static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+    static final long DEFAULT_MAX_ENTRY_BYTES = 32L * 1024 * 1024;
+
+    private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+    private static final int GZIP_TRAILER_SIZE = 8;
+
+    private final LinkedHashMap<String, Stored> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, FutureTask<StaticAsset>> loading = new ConcurrentHashMap<>();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private volatile long maxBytes = DEFAULT_MAX_BYTES;
+    private volatile long maxEntryBytes = DEFAULT_MAX_ENTRY_BYTES;
+    private long currentBytes;
+
+    void configure(long maxBytes, long maxEntryBytes) {
+        if (this.maxBytes == maxBytes && this.maxEntryBytes == maxEntryBytes) {
+            return;
+        }
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxEntryBytes;
+        synchronized (this) {
+            evictOverflow();
+        }
+    }
+
+    /**
+     * @param length The length of a file
+     * @return true if a file of that length can be held by the store
+     */
+    boolean accepts(long length) {
+        return length <= maxEntryBytes && length <= maxBytes;
+    }
+
+    /**
+     * @param key          The absolute path of the file
+     * @param length       Current length of the file
+     * @param lastModified Current last modification date of the file
+     * @return the stored asset, or null if it is not stored or stale
+     */
+    synchronized StaticAsset find(String key, long length, long lastModified) {
+        Stored stored = entries.get(key);
+        if (stored != null && stored.asset.isFresh(length, lastModified)) {
+            return stored.asset;
+        }
+        if (stored != null) {
+            remove(key);
+        }
+        return null;
+    }
+
+    synchronized StaticAsset peek(String key) {
+        Stored stored = entries.get(key);
+        return stored == null ? null : stored.asset;
+    }
+
+    /**
+     * Loads a file in direct buffers, along with its precompressed siblings or a
+     * gzip variant when its type is compressible. Concurrent loads of the same
+     * file wait for a single read.
+     *
+     * @param file        The file to load
+     * @param contentType The content type of the file
+     * @param digestIndex Provides the ETag of the file
+     * @return The asset, streamed from its buffer
+     * @throws IOException if the file cannot be read
+     */
+    StaticAsset load(File file, String contentType, DigestIndex digestIndex) throws IOException {
+        String key = file.getAbsolutePath();
+        FutureTask<StaticAsset> task = new FutureTask<>(() -> read(file, contentType, digestIndex));
+        FutureTask<StaticAsset> running = loading.putIfAbsent(key, task);
+        if (running == null) {
+            running = task;
+            task.run();
+        }
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading " + file, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to load " + file, e.getCause());
+        } finally {
+            loading.remove(key, running);
+        }
+    }
+
+    synchronized void invalidatePrefix(String path) {
+        Iterator<Map.Entry<String, Stored>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Stored> entry = iterator.next();
+            if (LookupCache.isUnder(entry.getKey(), path)) {
+                iterator.remove();
+                currentBytes -= entry.getValue().weight;
+            }
+        }
+    }
+
+    synchronized void invalidate(String key) {
+        remove(key);
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        currentBytes = 0;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the number of bytes held in direct buffers
+     */
+    synchronized long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    long getMaxBytes() {
+        return maxBytes;
+    }
+
+    long getMaxEntryBytes() {
+        return maxEntryBytes;
+    }
+
+    long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @param filter Accepts the keys of the assets to list
+     * @param usages Receives the memory held by the matching assets
+     */
+    synchronized void list(Predicate<String> filter, List<AssetCache.Usage> usages) {
+        for (Map.Entry<String, Stored> entry : entries.entrySet()) {
+            if (filter.test(entry.getKey())) {
+                usages.add(new AssetCache.Usage(entry.getKey(), true, entry.getValue().weight));
+            }
+        }
+    }
+
+    private StaticAsset read(File file, String contentType, DigestIndex digestIndex) throws IOException {
+        long length = file.length();
+        long lastModified = file.lastModified();
+        ByteBuffer content = readDirect(file.toPath(), length);
+        StaticAsset asset = new StaticAsset(file.getAbsolutePath(), length, lastModified, contentType,
+                digestIndex.eTag(file, length, lastModified, null), null, StaticAsset.bufferSource(content));
+        long weight = length;
+        if (WebApp.isCompressible(contentType)) {
+            for (String encoding : new String[] { "br", "gzip" }) {
+                ByteBuffer encoded = encode(file, content, lastModified, encoding);
+                if (encoded != null) {
+                    asset.putEncoding(encoding, new StaticAsset(asset.getPath(), encoded.remaining(), lastModified,
+                            contentType, DigestIndex.variantETag(asset.getETag(), encoding), null,
+                            StaticAsset.bufferSource(encoded)));
+                    weight += encoded.remaining();
+                }
+            }
+        }
+        if (weight <= maxBytes) {
+            put(asset, weight);
+        }
+        return asset;
+    }
+
+    private static ByteBuffer encode(File file, ByteBuffer content, long lastModified, String encoding)
+            throws IOException {
+        File precompressed = new File(file.getPath() + ("br".equals(encoding) ? ".br" : ".gz"));
+        if (precompressed.isFile() && precompressed.lastModified() >= lastModified) {
+            return readDirect(precompressed.toPath(), precompressed.length());
+        }
+        if (!"gzip".equals(encoding)) {
+            return null;
+        }
+        return gzipDirect(content);
+    }
+
+    /**
+     * Compresses off-heap content in the gzip format straight into a direct
+     * buffer, without copying it to the heap.
+     *
+     * @param content The content to compress, its position is left unchanged
+     * @return the compressed content, or null if it is not smaller
+     */
+    static ByteBuffer gzipDirect(ByteBuffer content) {
+        int length = content.remaining();
+        if (length <= GZIP_HEADER.length + GZIP_TRAILER_SIZE) {
+            return null;
+        }
+        // a variant that is not smaller than the content is not kept
+        ByteBuffer output = ByteBuffer.allocateDirect(length);
+        output.put(GZIP_HEADER);
+        output.limit(length - GZIP_TRAILER_SIZE);
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(content.duplicate());
+            deflater.finish();
+            while (!deflater.finished() && output.hasRemaining()) {
+                deflater.deflate(output);
+            }
+            if (!deflater.finished()) {
+                return null;
+            }
+        } finally {
+            deflater.end();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(content.duplicate());
+        output.limit(length);
+        output.order(java.nio.ByteOrder.LITTLE_ENDIAN).putInt((int) crc.getValue()).putInt(length);
+        output.flip();
+        ByteBuffer encoded = ByteBuffer.allocateDirect(output.remaining());
+        encoded.put(output).flip();
+        return encoded;
+    }
+
+    private static ByteBuffer readDirect(Path path, long length) throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("File " + path + " is too large to be cached");
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) length);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // read until the buffer is full or the end of the file
+            }
+        }
+        if (buffer.hasRemaining()) {
+            throw new IOException("File " + path + " changed while it was read");
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private synchronized void put(StaticAsset asset, long weight) {
+        remove(asset.getPath());
+        entries.put(asset.getPath(), new Stored(asset, weight));
+        currentBytes += weight;
+        evictOverflow();
+    }
+
+    private void remove(String key) {
+        Stored removed = entries.remove(key);
+        if (removed != null) {
+            currentBytes -= removed.weight;
+        }
+    }
+
+    private void evictOverflow() {
+        Iterator<Stored> iterator = entries.values().iterator();
+        while (currentBytes > maxBytes && iterator.hasNext()) {
+            Stored eldest = iterator.next();
+            iterator.remove();
+            currentBytes -= eldest.weight;
+            evictions.incrementAndGet();
+        }
+    }
+
+    private static class Stored {
+        private final StaticAsset asset;
+        private final long weight;
+
+        private Stored(StaticAsset asset, long weight) {
+            this.asset = asset;
+            this.weight = weight;
+        }
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ * (C) Copyright 2018-2019 Manaty SARL (https://manaty.net) and contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Affero General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. This program is
+ * not suitable for any direct or indirect application in MILITARY industry See the GNU Affero
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.manaty.webapp;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.meveo.api.exception.EntityDoesNotExistsException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache of the pages built by {@link HtmlApplicationSerializer}, keyed by
+ * (appCode, remainingPath). Each page records the instances it was built from
+ * and is dropped when one of them changes, see
+ * {@link WebApp#invalidatePages(String, String)}. Concurrent requests for a
+ * page that is not cached wait for a single build. Each page expires after
+ * {@code maxAge}, and the least recently used pages are evicted above
+ * {@code maxEntries}.
+ */
+class PageCache {
+
+    static final long DEFAULT_MAX_AGE = 300000L;
+    static final int DEFAULT_MAX_ENTRIES = 1000;
+
+    /**
+     * Dependency of a page that refers to a missing instance, such a page is
+     * served but not cached so that it is built again once the instance exists.
+     */
+    static final String MISSING = "missing";
+
+    private static final Logger LOG = LoggerFactory.getLogger(PageCache.class);
+
+    /**
+     * Builds a page, adding the instances it is built from to the dependencies.
+     */
+    @FunctionalInterface
+    interface PageBuilder {
+        String build(Set<String> dependencies) throws EntityDoesNotExistsException;
+    }
+
+    private final LinkedHashMap<String, FutureTask<Page>> pages = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Set<String>> dependents = new ConcurrentHashMap<>();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicBoolean invalidatorWarned = new AtomicBoolean();
+
+    private volatile long maxAge = DEFAULT_MAX_AGE;
+    private volatile int maxEntries = DEFAULT_MAX_ENTRIES;
+
+    void configure(long maxAge, int maxEntries) {
+        this.maxAge = maxAge;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @param cetCode The code of the custom entity template of an instance
+     * @param code    The code of the instance
+     * @return the key of the instance in the dependencies of a page
+     */
+    static String dependency(String cetCode, String code) {
+        return cetCode + ":" + code;
+    }
+
+    /**
+     * @param appCode       The code of the web application
+     * @param remainingPath The path of the page
+     * @param builder       Builds the page when it is not cached
+     * @return The html of the page
+     * @throws EntityDoesNotExistsException if an instance of the page does not
+     *                                      exist
+     */
+    String get(String appCode, String remainingPath, PageBuilder builder) throws EntityDoesNotExistsException {
+        String key = appCode + "|" + remainingPath;
+        FutureTask<Page> task;
+        boolean build = false;
+        synchronized (this) {
+            task = pages.get(key);
+            if (task != null && task.isDone() && isExpired(task)) {
+                remove(key, task);
+                task = null;
+                warnIfNotInvalidated();
+            }
+            if (task == null) {
+                task = new FutureTask<>(() -> build(key, builder));
+                pages.put(key, task);
+                evictOverflow();
+                build = true;
+            }
+        }
+        if (build) {
+            misses.incrementAndGet();
+            task.run();
+        } else {
+            hits.incrementAndGet();
+        }
+        try {
+            Page page = task.get();
+            if (!page.cacheable) {
+                synchronized (this) {
+                    remove(key, task);
+                }
+            }
+            return page.html;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            synchronized (this) {
+                remove(key, task);
+            }
+            throw new IllegalStateException("Interrupted while building page " + remainingPath, e);
+        } catch (ExecutionException e) {
+            // failures are not cached
+            synchronized (this) {
+                remove(key, task);
+            }
+            if (e.getCause() instanceof EntityDoesNotExistsException) {
+                throw (EntityDoesNotExistsException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Drops the pages built from the given instance.
+     *
+     * @param cetCode The code of the custom entity template of the instance
+     * @param code    The code of the instance
+     */
+    void invalidate(String cetCode, String code) {
+        // counted first, so that a page being built from the old instance is not kept
+        invalidations.incrementAndGet();
+        Set<String> keys = dependents.remove(dependency(cetCode, code));
+        if (keys != null) {
+            synchronized (this) {
+                keys.forEach(key -> remove(key, pages.get(key)));
+            }
+        }
+    }
+
+    /**
+     * Drops the pages of the given application.
+     *
+     * @param appCode The code of the web application
+     */
+    void invalidateApp(String appCode) {
+        invalidateApp(appCode, "");
+    }
+
+    /**
+     * Drops the pages of the given application whose path starts with the given
+     * prefix.
+     *
+     * @param appCode    The code of the web application
+     * @param pathPrefix The beginning of the paths of the pages
+     */
+    synchronized void invalidateApp(String appCode, String pathPrefix) {
+        String prefix = appCode + "|" + pathPrefix;
+        List<String> keys = new ArrayList<>();
+        pages.keySet().forEach(key -> {
+            if (key.startsWith(prefix)) {
+                keys.add(key);
+            }
+        });
+        keys.forEach(key -> remove(key, pages.get(key)));
+    }
+
+    synchronized void clear() {
+        pages.clear();
+        dependents.clear();
+    }
+
+    synchronized int size() {
+        return pages.size();
+    }
+
+    /**
+     * @param appCode The code of the web application
+     * @return the number of pages cached for the application
+     */
+    synchronized int size(String appCode) {
+        String prefix = appCode + "|";
+        return (int) pages.keySet().stream().filter(key -> key.startsWith(prefix)).count();
+    }
+
+    long getMaxAge() {
+        return maxAge;
+    }
+
+    int getMaxEntries() {
+        return maxEntries;
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of instance changes notified since the script was
+     *         loaded
+     */
+    long getInvalidations() {
+        return invalidations.get();
+    }
+
+    private Page build(String key, PageBuilder builder) throws EntityDoesNotExistsException {
+        long version = invalidations.get();
+        Set<String> dependencies = new HashSet<>();
+        String html = builder.build(dependencies);
+        // registered before the page is published, an instance changing from now on drops it
+        for (String dependency : dependencies) {
+            dependents.computeIfAbsent(dependency, k -> ConcurrentHashMap.newKeySet()).add(key);
+        }
+        // an instance that changed during the build may have been read before its change
+        boolean cacheable = !dependencies.contains(MISSING) && invalidations.get() == version;
+        return new Page(html, dependencies, System.currentTimeMillis(), cacheable);
+    }
+
+    /**
+     * Removes a page, and its key from the dependents of its instances unless the
+     * page was built again. Must be called while holding the lock.
+     */
+    private void remove(String key, FutureTask<Page> task) {
+        if (task == null) {
+            return;
+        }
+        pages.remove(key, task);
+        Page page = done(task);
+        if (page != null && !pages.containsKey(key)) {
+            for (String dependency : page.dependencies) {
+                dependents.computeIfPresent(dependency, (k, keys) -> {
+                    keys.remove(key);
+                    return keys.isEmpty() ? null : keys;
+                });
+            }
+        }
+    }
+
+    private void evictOverflow() {
+        Iterator<Map.Entry<String, FutureTask<Page>>> iterator = pages.entrySet().iterator();
+        List<Map.Entry<String, FutureTask<Page>>> evicted = new ArrayList<>();
+        int size = pages.size();
+        while (size > maxEntries && iterator.hasNext()) {
+            Map.Entry<String, FutureTask<Page>> eldest = iterator.next();
+            // pages being built are waited for, they are evicted once built
+            if (eldest.getValue().isDone()) {
+                evicted.add(eldest);
+                size--;
+            }
+        }
+        evicted.forEach(entry -> remove(entry.getKey(), entry.getValue()));
+    }
+
+    /**
+     * Pages are only refreshed when they expire if WebAppPageInvalidator is not
+     * registered as a listener of the instances, which is reported once when a
+     * page expires before any invalidation was received.
+     */
+    private void warnIfNotInvalidated() {
+        if (invalidations.get() == 0 && invalidatorWarned.compareAndSet(false, true)) {
+            LOG.warn("No page invalidation received, pages are only refreshed every {} ms; register"
+                    + " WebAppPageInvalidator as the update and remove listener of the WebApplication,"
+                    + " ApplicationWebPage and CSSStyleSheet templates", maxAge);
+        }
+    }
+
+    private boolean isExpired(FutureTask<Page> task) {
+        Page page = done(task);
+        return page == null || System.currentTimeMillis() - page.builtAt > maxAge;
+    }
+
+    /**
+     * @return the page of a completed task, null if the build failed
+     */
+    private static Page done(FutureTask<Page> task) {
+        if (!task.isDone()) {
+            return null;
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    private static class Page {
+        private final String html;
+        private final Set<String> dependencies;
+        private final long builtAt;
+        private final boolean cacheable;
+
+        private Page(String html, Set<String> dependencies, long builtAt, boolean cacheable) {
+            this.html = html;
+            this.dependencies = dependencies;
+            this.builtAt = builtAt;
+            this.cacheable = cacheable;
+        }
+    }
+}
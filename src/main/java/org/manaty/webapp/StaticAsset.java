@@ -0,0 +1,195 @@
+/*
+ * (C) Copyright 2018-2019 Manaty SARL (https://manaty.net) and contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Affero General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. This program is
+ * not suitable for any direct or indirect application in MILITARY industry See the GNU Affero
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.manaty.webapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A static file loaded in memory, along with the metadata needed to serve it.
+ */
+class StaticAsset {
+
+    /**
+     * Last modification date of assets that have none, like git blobs. They are
+     * served without Last-Modified and validated with their ETag only.
+     */
+    static final long NO_LAST_MODIFIED = -1L;
+
+    /**
+     * Reads the content of an asset that is not held in memory.
+     */
+    @FunctionalInterface
+    interface ContentSource {
+        void transfer(long start, long length, OutputStream output) throws IOException;
+    }
+
+    private final String path;
+    private final long length;
+    private final long lastModified;
+    private final String contentType;
+    private final String eTag;
+    private final byte[] content;
+    private final ContentSource source;
+    private final Map<String, byte[]> variants = new ConcurrentHashMap<>();
+    private final Map<String, StaticAsset> encodings = new ConcurrentHashMap<>();
+
+    StaticAsset(String path, long length, long lastModified, String contentType, String eTag, byte[] content) {
+        this(path, length, lastModified, contentType, eTag, content, null);
+    }
+
+    StaticAsset(String path, long length, long lastModified, String contentType, String eTag, byte[] content,
+            ContentSource source) {
+        this.path = path;
+        this.length = length;
+        this.lastModified = lastModified;
+        this.contentType = contentType;
+        this.eTag = eTag;
+        this.content = content;
+        this.source = source;
+    }
+
+    /**
+     * @param file A file
+     * @return a source copying ranges of the file with
+     *         {@link FileChannel#transferTo(long, long, WritableByteChannel)}
+     */
+    static ContentSource fileSource(File file) {
+        return (start, length, output) -> {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                WritableByteChannel target = Channels.newChannel(output);
+                long position = start;
+                long remaining = length;
+                while (remaining > 0) {
+                    long transferred = channel.transferTo(position, remaining, target);
+                    if (transferred <= 0) {
+                        break;
+                    }
+                    position += transferred;
+                    remaining -= transferred;
+                }
+            }
+        };
+    }
+
+    /**
+     * @param buffer A buffer holding the whole content, it is never modified
+     * @return a source copying ranges of the buffer
+     */
+    static ContentSource bufferSource(ByteBuffer buffer) {
+        return (start, length, output) -> {
+            ByteBuffer slice = buffer.duplicate();
+            slice.position((int) start);
+            slice.limit((int) (start + length));
+            WritableByteChannel channel = Channels.newChannel(output);
+            while (slice.hasRemaining()) {
+                channel.write(slice);
+            }
+        };
+    }
+
+    String getPath() {
+        return path;
+    }
+
+    long getLength() {
+        return length;
+    }
+
+    long getLastModified() {
+        return lastModified;
+    }
+
+    String getContentType() {
+        return contentType;
+    }
+
+    String getETag() {
+        return eTag;
+    }
+
+    /**
+     * @return the content of the asset, or null if it is streamed from its source
+     */
+    byte[] getContent() {
+        return content;
+    }
+
+    /**
+     * @return the source of the content when it is not held in memory
+     */
+    ContentSource getSource() {
+        return source;
+    }
+
+    /**
+     * @param encoding The content encoding
+     * @return the encoded content, an empty array if the encoding is not
+     *         available, or null if it was not resolved yet
+     */
+    byte[] getVariant(String encoding) {
+        return variants.get(encoding);
+    }
+
+    void putVariant(String encoding, byte[] variant) {
+        variants.put(encoding, variant);
+    }
+
+    /**
+     * @param encoding The content encoding
+     * @return the precompressed representation of an asset that is not held in
+     *         memory, or null if there is none for that encoding
+     */
+    StaticAsset getEncoding(String encoding) {
+        return encodings.get(encoding);
+    }
+
+    void putEncoding(String encoding, StaticAsset encoded) {
+        encodings.put(encoding, encoded);
+    }
+
+    boolean hasEncodings() {
+        return !encodings.isEmpty();
+    }
+
+    /**
+     * @return the number of bytes held by the asset and its encoded variants
+     */
+    long getWeight() {
+        long weight = content == null ? 0 : content.length;
+        for (byte[] variant : variants.values()) {
+            weight += variant.length;
+        }
+        return weight;
+    }
+
+    /**
+     * @param length       Current length of the file
+     * @param lastModified Current last modification date of the file
+     * @return true if the asset still reflects the file on disk
+     */
+    boolean isFresh(long length, long lastModified) {
+        return this.length == length && this.lastModified == lastModified;
+    }
+}
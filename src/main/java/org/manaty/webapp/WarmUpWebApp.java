@@ -0,0 +1,98 @@
+/*
+ * (C) Copyright 2018-2019 Manaty SARL (https://manaty.net) and contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Affero General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. This program is
+ * not suitable for any direct or indirect application in MILITARY industry See the GNU Affero
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.manaty.webapp;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.meveo.admin.exception.BusinessException;
+import org.meveo.commons.utils.ParamBean;
+import org.meveo.commons.utils.ParamBeanFactory;
+import org.meveo.service.script.Script;
+
+/**
+ * Warms up the caches of {@link WebApp} for an application, see
+ * {@link WebApp#warmUp(String, String, int)}. The warm-up runs in the
+ * background, the script returns its progress, or its summary when
+ * {@code wait} is set. Executing the script while a warm-up is running only
+ * reports its progress.
+ */
+public class WarmUpWebApp extends Script {
+
+    private static final long DEFAULT_TIMEOUT = 300L;
+
+    private ParamBeanFactory paramBeanFactory = getCDIBean(ParamBeanFactory.class);
+    private ParamBean config = paramBeanFactory.getInstance();
+
+    private String appCode;
+    private String contextPath;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private boolean wait;
+    private Object result;
+
+    public Object getResult() {
+        return result;
+    }
+
+    public void setAppCode(String appCode) {
+        this.appCode = appCode;
+    }
+
+    /**
+     * @param contextPath The context path of meveo, defaults to the
+     *                    {@code meveo.admin.webContext} setting
+     */
+    public void setContextPath(String contextPath) {
+        this.contextPath = contextPath;
+    }
+
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @param wait true to return once the warm-up is done, at most five minutes
+     *             later
+     */
+    public void setWait(boolean wait) {
+        this.wait = wait;
+    }
+
+    @Override
+    public void execute(Map<String, Object> parameters) throws BusinessException {
+        if (appCode == null || appCode.isEmpty()) {
+            throw new BusinessException("appCode is required");
+        }
+        WebAppWarmUp warmUp = WebAppWarmUp.find(appCode);
+        if (warmUp == null || warmUp.isDone()) {
+            WebApp.warmUp(appCode, contextPath != null ? contextPath : defaultContextPath(), parallelism);
+            warmUp = WebAppWarmUp.find(appCode);
+        }
+        if (wait) {
+            try {
+                warmUp.await(DEFAULT_TIMEOUT, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        result = warmUp.summary();
+    }
+
+    private String defaultContextPath() {
+        String webContext = config.getProperty("meveo.admin.webContext", "meveo").replaceAll("^/+|/+$", "");
+        return webContext.isEmpty() ? "" : "/" + webContext;
+    }
+}
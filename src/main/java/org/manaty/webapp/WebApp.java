@@ -15,7 +15,6 @@
  */
 package org.manaty.webapp;
 
-import org.apache.commons.io.FileUtils;
 import org.meveo.api.exception.EntityDoesNotExistsException;
 import org.meveo.api.persistence.CrossStorageApi;
 import org.meveo.api.rest.technicalservice.impl.EndpointResponse;
@@ -23,6 +22,7 @@ import org.meveo.api.rest.technicalservice.impl.EndpointRequest;
 import org.meveo.commons.utils.ParamBean;
 import org.meveo.commons.utils.ParamBeanFactory;
 import org.meveo.model.crm.EntityReferenceWrapper;
+import org.meveo.model.crm.custom.CustomFieldValue;
 import org.meveo.model.customEntities.CustomEntityInstance;
 import org.meveo.model.customEntities.WebApplication;
 import org.meveo.model.storage.Repository;
@@ -32,25 +32,57 @@ import org.meveo.service.script.Script;
 import org.meveo.service.storage.RepositoryService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.Flushable;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.net.URLDecoder;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.UnaryOperator;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import javax.servlet.ServletContext;
 
 public class WebApp extends Script {
 
     private static final int DEFAULT_BUFFER_SIZE = 10240;
     private static final long DEFAULT_EXPIRE_TIME = 604800000L;
+    private static final long DEFAULT_STREAM_THRESHOLD = 1024L * 1024;
     private static final String CRLF = "\r\n";
+    private static final String MULTIPART_BOUNDARY = "MULTIPART_BYTERANGES";
+    private static final int MAX_RANGES = 64;
+    static final int MIN_COMPRESS_SIZE = 256;
+    private static final String GZIP = "gzip";
+    private static final String BROTLI = "br";
+    private static final Pattern RANGE_PATTERN = Pattern.compile("^bytes=\\s*\\d*\\s*-\\s*\\d*\\s*(,\\s*\\d*\\s*-\\s*\\d*\\s*)*$");
     private static final String ENDPOINT_URL = "/rest/webapp/";
     private static final String INDEX_FILE = "index.html";
+    private static final String GENERATED_INDEX_FILE = "generated_index.html";
     private static final String PNG_TYPE = "image/png";
     private static final String AFFIX = "-UI";
     private static final String DEFAULT_ICON = "https://avatars1.githubusercontent.com/u/59589948?s=200&v=4";
@@ -62,30 +94,292 @@ public class WebApp extends Script {
 
     private static final Logger LOG = LoggerFactory.getLogger(WebApp.class);
 
+    /** Static assets served by every WebApp instance, shared across requests. */
+    private static final AssetCache ASSET_CACHE = new AssetCache();
+
+    /** Resolved files of each web application, shared across requests. */
+    private static final LookupCache LOOKUP_CACHE = new LookupCache();
+
+    /** Rendered index.html of each web application, shared across requests. */
+    private static final IndexCache INDEX_CACHE = new IndexCache();
+
+    /** Resolved configuration of each web application, shared across requests. */
+    private static final WebAppContextRegistry CONTEXTS = new WebAppContextRegistry();
+
+    /** Pages built from the WebApplication instances, shared across requests. */
+    private static final PageCache PAGE_CACHE = new PageCache();
+
+    /** Watches the directories of the applications to invalidate the caches. */
+    private static final WebAppWatcher WATCHER = new WebAppWatcher();
+
+    /** Latency and outcome of the requests, exposed through JMX. */
+    private static final WebAppMetrics METRICS = new WebAppMetrics();
+
+    /** One record per request, written asynchronously. */
+    private static final AccessLog ACCESS_LOG = new AccessLog();
+
+    /** Import maps published for each web application, served from memory. */
+    private static final ImportMapStore IMPORT_MAPS = new ImportMapStore();
+
+    /** MIME mapping of the last request, for the work done outside of a request. */
+    private static volatile ServletContext servletContext;
+
+    /** Set once the shared caches are configured, see {@link #configureCaches(ParamBean)}. */
+    private static final AtomicBoolean CACHES_CONFIGURED = new AtomicBoolean();
+
+    static {
+        WATCHER.addListener(WebApp::onFilesChanged);
+        WebAppService.register("watcher", WATCHER::close);
+        WebAppService.register("access-log", ACCESS_LOG::stop);
+        WebAppMetrics.register(METRICS);
+    }
+
     private ParamBeanFactory paramBeanFactory = getCDIBean(ParamBeanFactory.class);
     private CustomEntityInstanceService ceiService = getCDIBean(CustomEntityInstanceService.class);
     private RepositoryService repositoryService = getCDIBean(RepositoryService.class);
     private CrossStorageApi crossStorageApi = getCDIBean(CrossStorageApi.class);
     private ParamBean config = paramBeanFactory.getInstance();
-    private Repository repository = repositoryService.findDefaultRepository();
 
     private EndpointRequest request;
-    private String basePath;
-    private String webappPath;
+    private WebAppContext context;
     private Object result = "";
     private String appCode = "";
+    private WebAppMetrics.Outcome outcome = WebAppMetrics.Outcome.ERROR;
+    private int status = 200;
+    private long bytesServed;
+    private boolean committed;
 
-    public WebApp() {
-        basePath = config.getProperty("providers.rootDir", File.separator + "meveodata");
+    /**
+     * Resolves the directories, repository and settings of an application. This
+     * is done once per application and again when the provider directories are
+     * reconfigured.
+     *
+     * @param appCode   The code of the web application
+     * @param configKey The provider directories the context is built for
+     * @return The context of the application
+     */
+    private WebAppContext createContext(String appCode, String configKey) {
+        String basePath = config.getProperty("providers.rootDir", File.separator + "meveodata");
         String rootDirectory = config.getProperty("provider.rootDir", "default");
         basePath += File.separator + rootDirectory + File.separator;
-        webappPath = basePath + "webapp" + File.separator;
+        String webappPath = basePath + "webapp" + File.separator;
         LOG.info("basePath: {}", basePath);
-        LOG.info("webappPath: {}", basePath);
+        LOG.info("webappPath: {}", webappPath);
         File path = new File(webappPath);
         if (!path.exists()) {
             path.mkdirs();
         }
+        configureCaches(config);
+        long streamThreshold = Long.parseLong(config.getProperty("webapp.stream.threshold", String.valueOf(DEFAULT_STREAM_THRESHOLD)));
+        boolean streamPages = Boolean.parseBoolean(config.getProperty("webapp.pages.streaming", "false"));
+        long applicationTtl = Long.parseLong(config.getProperty("webapp.application.ttl",
+                String.valueOf(WebAppContext.DEFAULT_APPLICATION_TTL)));
+        File gitDirectory = GitHelper.getRepositoryDir(null, appCode + AFFIX);
+        // when a ref is configured, the files of the repository are read from the
+        // tree of that ref instead of the working tree
+        String gitRef = config.getProperty("webapp." + appCode + ".gitRef", config.getProperty("webapp.gitRef", ""));
+        GitTreeSource gitSource = gitRef.isEmpty() ? null
+                : GitTreeSource.open(gitDirectory, gitRef, Long.parseLong(config.getProperty("webapp.gitRef.refresh",
+                        String.valueOf(GitTreeSource.DEFAULT_REFRESH_INTERVAL))));
+        WebAppContext context = new WebAppContext(appCode, configKey, webappPath, webappPath + appCode + AFFIX,
+                gitDirectory, repositoryService.findDefaultRepository(), DigestIndex.forDirectory(basePath, webappPath),
+                streamThreshold, streamPages, applicationTtl, gitSource);
+        if (Boolean.parseBoolean(config.getProperty("webapp.watch.enabled", "true"))) {
+            // once the directories are watched, cached entries are trusted until a change is notified
+            context.setWatched(WATCHER.watch(appCode, new File(context.getAppRootPath()).toPath(), gitDirectory.toPath()));
+        }
+        return context;
+    }
+
+    /**
+     * Configures the caches and the access log shared by all the applications
+     * from the configuration. This is done once per version of the script, by
+     * the first context creation or the first resize, so that creating the
+     * context of an application does not reset limits changed since.
+     *
+     * @param config The configuration of the provider
+     */
+    static void configureCaches(ParamBean config) {
+        if (!CACHES_CONFIGURED.compareAndSet(false, true)) {
+            return;
+        }
+        ASSET_CACHE.configure(
+                Long.parseLong(config.getProperty("webapp.cache.maxBytes", String.valueOf(AssetCache.DEFAULT_MAX_BYTES))),
+                Integer.parseInt(config.getProperty("webapp.cache.maxEntries", String.valueOf(AssetCache.DEFAULT_MAX_ENTRIES))),
+                Long.parseLong(config.getProperty("webapp.cache.maxEntryBytes", String.valueOf(AssetCache.DEFAULT_MAX_ENTRY_BYTES))));
+        ASSET_CACHE.configureOffHeap(
+                Long.parseLong(config.getProperty("webapp.cache.offHeap.maxBytes", String.valueOf(OffHeapAssetStore.DEFAULT_MAX_BYTES))),
+                Long.parseLong(config.getProperty("webapp.cache.offHeap.maxEntryBytes", String.valueOf(OffHeapAssetStore.DEFAULT_MAX_ENTRY_BYTES))));
+        LOOKUP_CACHE.configure(
+                Long.parseLong(config.getProperty("webapp.lookup.ttl", String.valueOf(LookupCache.DEFAULT_TTL))),
+                Long.parseLong(config.getProperty("webapp.lookup.negativeTtl", String.valueOf(LookupCache.DEFAULT_NEGATIVE_TTL))),
+                Integer.parseInt(config.getProperty("webapp.lookup.maxEntries", String.valueOf(LookupCache.DEFAULT_MAX_ENTRIES))));
+        PAGE_CACHE.configure(
+                Long.parseLong(config.getProperty("webapp.pages.maxAge", String.valueOf(PageCache.DEFAULT_MAX_AGE))),
+                Integer.parseInt(config.getProperty("webapp.pages.maxEntries", String.valueOf(PageCache.DEFAULT_MAX_ENTRIES))));
+        ACCESS_LOG.configure(Boolean.parseBoolean(config.getProperty("webapp.accessLog.enabled", "true")),
+                Double.parseDouble(config.getProperty("webapp.accessLog.sampleRate",
+                        String.valueOf(AccessLog.DEFAULT_SAMPLE_RATE))));
+    }
+
+    /**
+     * Invalidates the cached entries of the files that changed in the directories
+     * of an application.
+     *
+     * @param appCode  The code of the web application
+     * @param paths    The files and directories that changed
+     * @param overflow true if changes were lost and the whole application must be
+     *                 invalidated
+     */
+    static void onFilesChanged(String appCode, Set<Path> paths, boolean overflow) {
+        WebAppContext context = CONTEXTS.find(appCode);
+        if (overflow || context == null) {
+            LOG.info("Files of {} changed, invalidating all its cached entries", appCode);
+            LOOKUP_CACHE.invalidate(appCode);
+            INDEX_CACHE.clear();
+            IMPORT_MAPS.invalidateApp(appCode, "");
+            if (context != null) {
+                ASSET_CACHE.invalidatePrefix(context.getAppRootPath());
+                ASSET_CACHE.invalidatePrefix(context.getGitDirectory().getAbsolutePath());
+            }
+            return;
+        }
+        LOG.debug("Files of {} changed: {}", appCode, paths);
+        for (Path path : paths) {
+            File file = path.toFile();
+            ASSET_CACHE.invalidatePrefix(file.getAbsolutePath());
+            context.getDigestIndex().invalidate(file);
+            if (INDEX_FILE.equals(file.getName())) {
+                INDEX_CACHE.invalidate(file);
+            }
+        }
+        LOOKUP_CACHE.invalidate(appCode, paths,
+                Arrays.asList(new File(context.getAppRootPath()).toPath(), context.getGitDirectory().toPath()));
+        IMPORT_MAPS.invalidate(appCode, paths);
+    }
+
+    /**
+     * @return the application contexts shared by all the web applications
+     */
+    static WebAppContextRegistry getContexts() {
+        return CONTEXTS;
+    }
+
+    /**
+     * @return the built page cache shared by all the web applications
+     */
+    static PageCache getPageCache() {
+        return PAGE_CACHE;
+    }
+
+    /**
+     * Drops the pages built from the given instance. Must be called when a
+     * WebApplication, ApplicationWebPage or CSSStyleSheet instance is updated or
+     * removed.
+     *
+     * @param cetCode The code of the custom entity template of the instance
+     * @param code    The code of the instance
+     */
+    public static void invalidatePages(String cetCode, String code) {
+        PAGE_CACHE.invalidate(cetCode, code);
+        if (WebApplication.class.getSimpleName().equals(cetCode)) {
+            // the entity is kept by the context of the application
+            CONTEXTS.invalidate(code);
+        }
+    }
+
+    /**
+     * Publishes the import map generated in a directory of an application. It is
+     * served from memory, from that directory, as {@code importmap.json} with
+     * the {@code application/importmap+json} type and as {@code importmap.js},
+     * which sets {@code window.importmap}, in place of the importmap.js written
+     * there until it changes. A map generated outside of the directories of the
+     * application, or hidden by a file of its webapp directory, is not
+     * published.
+     *
+     * @param appCode   The code of the web application
+     * @param directory The directory the import map was generated in
+     * @param json      The import map
+     */
+    public static void putImportMap(String appCode, File directory, String json) {
+        WebAppContext context = CONTEXTS.find(appCode);
+        File gitDirectory = context != null ? context.getGitDirectory()
+                : GitHelper.getRepositoryDir(null, appCode + AFFIX);
+        Path path = directory.getAbsoluteFile().toPath().normalize();
+        Path gitRoot = gitDirectory == null ? null : gitDirectory.getAbsoluteFile().toPath().normalize();
+        Path appRoot = context == null ? null
+                : new File(context.getAppRootPath()).getAbsoluteFile().toPath().normalize();
+        String requestPath;
+        if (appRoot != null && path.startsWith(appRoot)) {
+            requestPath = requestPathOf(appRoot, path);
+        } else if (gitRoot != null && path.startsWith(gitRoot)) {
+            requestPath = requestPathOf(gitRoot, path);
+            if (appRoot != null && new File(appRoot + requestPath, ImportMapStore.JS_FILE).exists()) {
+                LOG.debug("Import map of {} is hidden by the webapp directory, it is not published", directory);
+                return;
+            }
+        } else {
+            LOG.debug("{} is not a directory of {}, its import map is not published", directory, appCode);
+            return;
+        }
+        IMPORT_MAPS.put(appCode, requestPath, new File(directory, ImportMapStore.JS_FILE), json);
+    }
+
+    /**
+     * Stops serving from memory the import maps generated in a directory, after
+     * their importmap.js was generated again without being published.
+     *
+     * @param directory The directory the import maps were generated in
+     */
+    public static void removeImportMaps(File directory) {
+        IMPORT_MAPS.invalidateDirectory(directory);
+    }
+
+    private static String requestPathOf(Path root, Path path) {
+        String relative = root.relativize(path).toString().replace(File.separatorChar, '/');
+        return relative.isEmpty() ? "" : "/" + relative;
+    }
+
+    /**
+     * @return the import maps published for the web applications
+     */
+    static ImportMapStore getImportMaps() {
+        return IMPORT_MAPS;
+    }
+
+    /**
+     * @return the request metrics shared by all the web applications
+     */
+    static WebAppMetrics getMetrics() {
+        return METRICS;
+    }
+
+    /**
+     * @return the access log shared by all the web applications
+     */
+    static AccessLog getAccessLog() {
+        return ACCESS_LOG;
+    }
+
+    /**
+     * @return the static asset cache shared by all the web applications
+     */
+    static AssetCache getAssetCache() {
+        return ASSET_CACHE;
+    }
+
+    /**
+     * @return the resolved path cache shared by all the web applications
+     */
+    static LookupCache getLookupCache() {
+        return LOOKUP_CACHE;
+    }
+
+    /**
+     * @return the rendered index cache shared by all the web applications
+     */
+    static IndexCache getIndexCache() {
+        return INDEX_CACHE;
     }
 
     public Object getResult() {
@@ -102,224 +396,803 @@ public class WebApp extends Script {
 
     @Override
     public void execute(Map<String, Object> methodContext) {
+        long startTime = System.nanoTime();
         this.request = (EndpointRequest) methodContext.get("request");
         EndpointResponse response = (EndpointResponse) methodContext.get("response");
         String remainingPath = request.getRemainingPath();
-        LOG.info("appCode: " + this.appCode);
-        LOG.info("remainingPath: " + remainingPath);
-        String appPath = "/" + this.appCode + AFFIX;
-        String rootPath = null;
-        if (remainingPath.equalsIgnoreCase(appPath)) {
-            rootPath = webappPath;
-        } else {
-            rootPath = webappPath + this.appCode + AFFIX;
-        }
+        LOG.debug("appCode: {}, remainingPath: {}", this.appCode, remainingPath);
+        this.context = CONTEXTS.get(this.appCode, configKey(), this::createContext);
+        servletContext = request.getServletContext();
         try {
-            // we first try to get the file from file explorer under the webapp/appCode/
-            // directory
-            File file = lookupFile(rootPath, remainingPath);
+            StaticAsset importMap = IMPORT_MAPS.get(this.appCode, remainingPath);
+            if (importMap != null) {
+                outcome = WebAppMetrics.Outcome.IMPORT_MAP;
+                serveAsset(importMap, null, remainingPath.substring(1), request, response);
+                return;
+            }
+            // a packed bundle of the application takes precedence over its directories
+            WebAppBundle bundle = context.getBundle(name -> resolveContentType(request, name));
+            WebAppBundle.Entry entry = bundle == null ? null : bundle.resolve(remainingPath);
+            if (entry != null) {
+                outcome = entry.isIndexTemplate() ? WebAppMetrics.Outcome.INDEX : WebAppMetrics.Outcome.BUNDLE;
+                serveBundleEntry(bundle, entry, request, response);
+                return;
+            }
+            // resolved paths are cached per application, including the ones that do
+            // not exist in any of the directories
+            LookupCache.Entry lookup = LOOKUP_CACHE.get(this.appCode, remainingPath, context.isWatched());
+            if (lookup == null) {
+                lookup = lookup(remainingPath);
+                LOOKUP_CACHE.put(this.appCode, remainingPath, lookup);
+            }
+            File file = lookup.getFile();
+            if (file == null && context.getGitSource() != null) {
+                GitTreeSource.Blob blob = context.getGitSource().resolve(remainingPath);
+                if (blob != null && blob.isIndexTemplate() && bundle != null && bundle.getIndexTemplate() != null) {
+                    outcome = WebAppMetrics.Outcome.INDEX;
+                    serveBundleEntry(bundle, bundle.getIndexTemplate(), request, response);
+                    return;
+                }
+                if (blob != null) {
+                    outcome = blob.isIndexTemplate() ? WebAppMetrics.Outcome.INDEX : WebAppMetrics.Outcome.GIT_OBJECT;
+                    serveBlob(context.getGitSource(), blob, request, response);
+                    return;
+                }
+            }
+            // file still doesnt exist, we build it
             if (file == null) {
-                LOG.info("File not found in webapp, we look in git");
-                File repositoryDir = GitHelper.getRepositoryDir(null, this.appCode + AFFIX);
-                rootPath = repositoryDir.getPath().toString();
-                file = lookupFile(rootPath, remainingPath);
-                // file still doesnt exist, we build it
-                if (file == null) {
-                    LOG.info("File not found in git, we build it");
-                    WebApplication app = crossStorageApi.find(repository, WebApplication.class).by("code", this.appCode)
-                            .getResult();
-                    CustomEntityInstance instance = crossStorageApi.find(repository, app.getUuid(), app.getCetCode());
-                    result = org.manaty.webapp.HtmlApplicationSerializer.getHtml(instance, remainingPath, ceiService);
+                LOG.debug("File not found in git, we build it");
+                outcome = WebAppMetrics.Outcome.PAGE;
+                if (context.isStreamPages()) {
+                    // the page is written to the response as it is rendered, it is not cached
+                    CustomEntityInstance instance = findWebApplicationInstance();
+                    response.setContentType("text/html;charset=UTF-8");
+                    CountingOutputStream output = new CountingOutputStream(openOutput(response), 0);
+                    Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8),
+                            DEFAULT_BUFFER_SIZE);
+                    org.manaty.webapp.HtmlApplicationSerializer.writeHtml(instance, remainingPath, ceiService,
+                            new HashSet<>(), writer);
+                    writer.flush();
+                    bytesServed = output.getPosition();
                     return;
                 }
+                String page = PAGE_CACHE.get(this.appCode, remainingPath, dependencies -> {
+                    CustomEntityInstance instance = findWebApplicationInstance();
+                    dependencies.add(PageCache.dependency(instance.getCetCode(), instance.getCode()));
+                    return org.manaty.webapp.HtmlApplicationSerializer.getHtml(instance, remainingPath, ceiService,
+                            dependencies);
+                });
+                // counted in characters, the page is encoded by the endpoint
+                bytesServed = page.length();
+                result = page;
+                return;
+            }
+            if (lookup.isIndexTemplate()) {
+                outcome = WebAppMetrics.Outcome.INDEX;
+                if (bundle != null && bundle.getIndexTemplate() != null) {
+                    // the bundle also takes precedence for the fallback to the index template
+                    serveBundleEntry(bundle, bundle.getIndexTemplate(), request, response);
+                } else {
+                    serveIndex(file, request, response);
+                }
+                return;
             }
+            outcome = LookupCache.isUnder(file.getPath(), context.getGitDirectory().getPath())
+                    ? WebAppMetrics.Outcome.GIT_FILE
+                    : WebAppMetrics.Outcome.WEBAPP_FILE;
             serveFile(file, request, response);
         } catch (IOException | EntityDoesNotExistsException exception) {
-            response.setStatus(400);
-            result = "Encountered error while trying to load " + remainingPath;
+            if (committed) {
+                // the status is already sent, the client gets a truncated body
+                LOG.error("Failed to send {}", remainingPath, exception);
+                status = 400;
+            } else {
+                setStatus(response, 400);
+                result = "Encountered error while trying to load " + remainingPath;
+            }
+        } finally {
+            long elapsed = System.nanoTime() - startTime;
+            WebAppMetrics.Outcome recorded = outcomeOf(status);
+            METRICS.record(this.appCode, recorded, bytesServed, elapsed);
+            ACCESS_LOG.log(this.appCode, remainingPath, recorded, status, bytesServed, elapsed);
+        }
+    }
+
+    /**
+     * @param status The status of the response
+     * @return the outcome recorded for the request
+     */
+    private WebAppMetrics.Outcome outcomeOf(int status) {
+        if (status == 304) {
+            return WebAppMetrics.Outcome.NOT_MODIFIED;
+        } else if (status == 404) {
+            return WebAppMetrics.Outcome.NOT_FOUND;
+        } else if (status >= 400) {
+            return WebAppMetrics.Outcome.ERROR;
         }
+        return outcome;
+    }
+
+    private void setStatus(EndpointResponse response, int status) {
+        this.status = status;
+        response.setStatus(status);
+    }
+
+    /**
+     * Opens the servlet output of the response to write the body. The status and
+     * all the headers must be set on the response before: the first write
+     * commits the servlet response, and what is set through
+     * {@link EndpointResponse} afterwards is not sent.
+     *
+     * @param response The response to write to
+     * @return The output of the servlet response
+     * @throws IOException if the output cannot be opened
+     */
+    private OutputStream openOutput(EndpointResponse response) throws IOException {
+        committed = true;
+        return response.getOutputStream();
+    }
+
+    /**
+     * Preloads the caches of an application in the background: resolved paths,
+     * assets with their ETag and compressed variants, and the rendered index.
+     * Paths are resolved as they are when requested, and assets are typed with
+     * the MIME mapping of the servlet context. Its progress is reported by
+     * {@link WarmUpWebApp}.
+     *
+     * @param appCode     The code of the web application
+     * @param contextPath The context path of meveo the index is rendered for,
+     *                    like {@code /meveo}
+     * @param parallelism The number of threads loading the files
+     */
+    public static void warmUp(String appCode, String contextPath, int parallelism) {
+        WebApp webApp = new WebApp();
+        webApp.setAppCode(appCode);
+        webApp.context = CONTEXTS.get(appCode, webApp.configKey(), webApp::createContext);
+        String baseHref = contextPath + ENDPOINT_URL + appCode + "/";
+        String title = WebAppScriptHelper.toTitleName(appCode);
+        ServletContext mimeTypes = servletContext != null ? servletContext : getCDIBean(ServletContext.class);
+        WebAppWarmUp.start(webApp.context, parallelism, baseHref,
+                contents -> renderIndex(contents, title, baseHref), webApp::lookup,
+                mimeTypes == null ? null : name -> resolveContentType(mimeTypes, name));
     }
 
-    private File lookupFile(String rootPath, String remainingPath) throws java.io.IOException {
+    /**
+     * Drops the cached state of the application: resolved paths, assets,
+     * rendered indexes and pages. The index files generated on disk by previous
+     * versions ({@code generated_index.html}) are deleted, as they are no longer
+     * refreshed. When the whole application is purged, its context is resolved
+     * again on the next request.
+     *
+     * @param pathPrefix The beginning of the requested paths to purge, like
+     *                   {@code /assets}, null or empty for the whole application
+     * @return the number of generated index files deleted
+     */
+    public int purge(String pathPrefix) {
+        this.context = CONTEXTS.get(this.appCode, configKey(), this::createContext);
+        String relativePath = GitTreeSource.normalize(pathPrefix == null ? "" : pathPrefix);
+        if (relativePath == null) {
+            throw new IllegalArgumentException("Invalid path " + pathPrefix);
+        }
+        File[] roots = { new File(context.getAppRootPath(), relativePath),
+                new File(context.getGitDirectory(), relativePath) };
+        if (relativePath.isEmpty()) {
+            LOOKUP_CACHE.invalidate(this.appCode);
+            PAGE_CACHE.invalidateApp(this.appCode);
+            INDEX_CACHE.invalidateApp(this.appCode);
+            IMPORT_MAPS.invalidateApp(this.appCode, "");
+        } else {
+            LOOKUP_CACHE.invalidatePath(this.appCode, "/" + relativePath);
+            PAGE_CACHE.invalidateApp(this.appCode, "/" + relativePath);
+            IMPORT_MAPS.invalidateApp(this.appCode, "/" + relativePath);
+        }
+        int deleted = 0;
+        for (File root : roots) {
+            ASSET_CACHE.invalidatePrefix(root.getAbsolutePath());
+            INDEX_CACHE.invalidatePrefix(root.getAbsolutePath());
+            deleted += deleteGeneratedIndexes(root.toPath());
+        }
+        if (relativePath.isEmpty()) {
+            CONTEXTS.invalidate(this.appCode);
+        }
+        LOG.info("Purged {}{}, deleted {} generated index files", this.appCode,
+                relativePath.isEmpty() ? "" : " /" + relativePath, deleted);
+        return deleted;
+    }
+
+    private static int deleteGeneratedIndexes(Path root) {
+        if (!Files.isDirectory(root)) {
+            return 0;
+        }
+        AtomicLong deleted = new AtomicLong();
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    return ".git".equals(String.valueOf(dir.getFileName())) ? FileVisitResult.SKIP_SUBTREE
+                            : FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    if (GENERATED_INDEX_FILE.equals(String.valueOf(file.getFileName()))) {
+                        Files.deleteIfExists(file);
+                        deleted.incrementAndGet();
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            LOG.warn("Failed to delete the generated index files under {}", root, e);
+        }
+        return (int) deleted.get();
+    }
+
+    /**
+     * @return the provider directories the contexts are built for
+     */
+    private String configKey() {
+        return config.getProperty("providers.rootDir", File.separator + "meveodata") + "|"
+                + config.getProperty("provider.rootDir", "default");
+    }
+
+    /**
+     * @return the WebApplication instance of the application
+     * @throws EntityDoesNotExistsException if the instance does not exist
+     */
+    private CustomEntityInstance findWebApplicationInstance() throws EntityDoesNotExistsException {
+        Repository repository = context.getRepository();
+        WebApplication app = context.getWebApplication(
+                () -> crossStorageApi.find(repository, WebApplication.class).by("code", this.appCode).getResult());
+        return crossStorageApi.find(repository, app.getUuid(), app.getCetCode());
+    }
+
+    /**
+     * Resolves a requested path in the directories of the application.
+     *
+     * @param remainingPath The requested path
+     * @return the resolution of the path, to be cached
+     * @throws IOException if the path cannot be decoded
+     */
+    private LookupCache.Entry lookup(String remainingPath) throws IOException {
+        String appPath = "/" + this.appCode + AFFIX;
+        String rootPath = null;
+        if (remainingPath.equalsIgnoreCase(appPath)) {
+            rootPath = context.getWebappPath();
+        } else {
+            rootPath = context.getAppRootPath();
+        }
+        // we first try to get the file from file explorer under the webapp/appCode/
+        // directory
+        LookupCache.Entry lookup = lookupFile(rootPath, remainingPath);
+        if (lookup.getFile() == null && context.getGitSource() == null) {
+            LOG.debug("File not found in webapp, we look in git");
+            rootPath = context.getGitDirectory().getPath();
+            lookup = lookupFile(rootPath, remainingPath);
+        }
+        return lookup;
+    }
+
+    private LookupCache.Entry lookupFile(String rootPath, String remainingPath) throws java.io.IOException {
         // load the file as-is at first
         File file = new File(rootPath, URLDecoder.decode(remainingPath, "UTF-8"));
-        LOG.info("Looking for " + remainingPath + " in " + rootPath);
+        LOG.debug("Looking for {} in {}", remainingPath, rootPath);
         // we attempt to load the index.html from the directory first.
         if (!file.exists() || file.isDirectory()) {
             if (file.isDirectory()) {
                 int subFolderIndex = remainingPath.indexOf("/", 1);
                 String subFolder = subFolderIndex > -1 ? remainingPath.substring(0, subFolderIndex) : remainingPath;
-                LOG.info("Attempt to load index.html from " + subFolder);
+                LOG.debug("Attempt to load index.html from {}", subFolder);
                 file = new File(rootPath, URLDecoder.decode(subFolder + File.separator + INDEX_FILE, "UTF-8"));
             }
             // default to rootPath's index.html
             if (!file.exists()) {
-                LOG.info("Attempt to load index.html from " + rootPath);
+                LOG.debug("Attempt to load index.html from {}", rootPath);
                 String baseIndexPath = rootPath + File.separator;
                 File indexTemplate = new File(baseIndexPath + INDEX_FILE);
-                String repoPath = GitHelper.getRepositoryDir(null, this.appCode + AFFIX).toPath().toString();
+                String repoPath = context.getGitDirectory().toPath().toString();
                 String rootIndex = repoPath + File.separator + INDEX_FILE;
                 boolean isAppIndex = indexTemplate.getAbsolutePath().contains(rootIndex);
 
-                LOG.info("indexPath: {}", indexTemplate.getAbsolutePath());
-                LOG.info("repoPath: {}", repoPath);
-                LOG.info("rootIndex: {}", rootIndex);
-                LOG.info("isAppIndex: {}", isAppIndex);
-                if (isAppIndex) {
-                    File generatedIndex = new File(baseIndexPath + "generated_index.html");
-                    if (!generatedIndex.exists()) {
-                        String indexContents = new String(Files.readAllBytes(indexTemplate.toPath()));
-                        int start = indexContents.indexOf(INDEX_REPLACE_START);
-                        int end = indexContents.indexOf(INDEX_REPLACE_END);
-                        String topContent = indexContents.substring(0, start);
-                        String endContent = indexContents.substring(end + INDEX_REPLACE_END.length());
-                        String title = String.format(TITLE_TEMPLATE, WebAppScriptHelper.toTitleName(this.appCode));
-                        String iconType = PNG_TYPE;
-                        String iconUrl = DEFAULT_ICON;
-                        String favIcon = String.format(FAVICON_TEMPLATE, iconType, iconUrl);
-                        String contextPath = request.getContextPath() + ENDPOINT_URL + this.appCode + "/";
-                        String baseUrl = String.format(BASEURL_TEMPLATE, contextPath);
-                        String newContent = topContent + CRLF + title + CRLF + favIcon + CRLF + baseUrl + CRLF
-                                + endContent;
-                        FileUtils.writeStringToFile(generatedIndex, newContent);
-                    }
-                    file = generatedIndex;
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("indexPath: {}, repoPath: {}, rootIndex: {}, isAppIndex: {}",
+                            indexTemplate.getAbsolutePath(), repoPath, rootIndex, isAppIndex);
+                }
+                if (isAppIndex && indexTemplate.exists()) {
+                    // the template is rendered in memory when it is served
+                    LOG.debug("Lookup returning index template: {}", indexTemplate);
+                    return new LookupCache.Entry(indexTemplate, true);
                 }
             }
             // if an index.html file does not exist in both rootPath and subdirectory, we
             // return null
             if (!file.exists()) {
-                return null;
+                return new LookupCache.Entry(null, false);
+            }
+        }
+        LOG.debug("Lookup returning file: {}", file);
+        return new LookupCache.Entry(file, false);
+    }
+
+    /**
+     * Serves the index.html of the application, rendered from its template with
+     * the title, favicon and base href of the application.
+     *
+     * @param indexTemplate The index.html template
+     * @param request       The request being served
+     * @param response      The response to write to
+     * @throws IOException if the template cannot be read
+     */
+    private void serveIndex(File indexTemplate, EndpointRequest request, EndpointResponse response)
+            throws IOException {
+        String baseHref = request.getContextPath() + ENDPOINT_URL + this.appCode + "/";
+        String title = WebAppScriptHelper.toTitleName(this.appCode);
+        StaticAsset asset = INDEX_CACHE.get(indexTemplate, baseHref, context.isWatched(),
+                contents -> renderIndex(contents, title, baseHref));
+        serveAsset(asset, null, INDEX_FILE, request, response);
+    }
+
+    /**
+     * Serves a file of the pinned git tree of the application. Assets are cached
+     * by blob id, so files that did not change between two refs keep their cache
+     * entries and ETag.
+     *
+     * @param source   The pinned tree of the application
+     * @param blob     The blob to serve
+     * @param request  The request being served
+     * @param response The response to write to
+     */
+    private void serveBlob(GitTreeSource source, GitTreeSource.Blob blob, EndpointRequest request,
+            EndpointResponse response) {
+        String fileName = blob.getName();
+        StaticAsset asset;
+        try {
+            if (blob.isIndexTemplate()) {
+                String baseHref = request.getContextPath() + ENDPOINT_URL + this.appCode + "/";
+                String title = WebAppScriptHelper.toTitleName(this.appCode);
+                asset = INDEX_CACHE.get("git:" + blob.getId().name() + "|" + baseHref,
+                        StaticAsset.NO_LAST_MODIFIED, () -> source.read(blob),
+                        contents -> renderIndex(contents, title, baseHref));
+                fileName = INDEX_FILE;
+            } else {
+                String contentType = resolveContentType(request, fileName);
+                asset = ASSET_CACHE.get("git:" + blob.getId().name() + "|" + contentType,
+                        key -> source.load(key, blob, contentType, context.getStreamThreshold()));
             }
+        } catch (IOException ioException) {
+            LOG.error("Failed to read {} at {}", blob.getPath(), source.getRef(), ioException);
+            setStatus(response, 400);
+            response.setErrorMessage("Encountered error while trying to load " + fileName);
+            return;
         }
-        LOG.info("Lookup returning file: {}", file.toPath());
-        return file;
+        serveAsset(asset, null, fileName, request, response);
+    }
+
+    /**
+     * Serves a file of the packed bundle of the application, streamed from its
+     * memory mapping.
+     *
+     * @param bundle   The bundle of the application
+     * @param entry    The entry to serve
+     * @param request  The request being served
+     * @param response The response to write to
+     * @throws IOException if the index template cannot be rendered
+     */
+    private void serveBundleEntry(WebAppBundle bundle, WebAppBundle.Entry entry, EndpointRequest request,
+            EndpointResponse response) throws IOException {
+        if (entry.isIndexTemplate()) {
+            String baseHref = request.getContextPath() + ENDPOINT_URL + this.appCode + "/";
+            String title = WebAppScriptHelper.toTitleName(this.appCode);
+            StaticAsset asset = INDEX_CACHE.get("bundle:" + entry.getHash() + "|" + baseHref,
+                    bundle.getLastModified(), () -> bundle.read(entry),
+                    contents -> renderIndex(contents, title, baseHref));
+            serveAsset(asset, null, INDEX_FILE, request, response);
+            return;
+        }
+        serveAsset(entry.getAsset(), null, entry.getName(), request, response);
+    }
+
+    /**
+     * Replaces the template section of the index.html by the title, favicon and
+     * base href of the application.
+     *
+     * @param indexContents The contents of the index.html template
+     * @param title         The title of the application
+     * @param baseHref      The base URL of the application
+     * @return The rendered index.html
+     */
+    static String renderIndex(String indexContents, String title, String baseHref) {
+        int start = indexContents.indexOf(INDEX_REPLACE_START);
+        int end = indexContents.indexOf(INDEX_REPLACE_END);
+        if (start < 0 || end < start) {
+            LOG.warn("Index template does not contain the template section");
+            return indexContents;
+        }
+        String topContent = indexContents.substring(0, start);
+        String endContent = indexContents.substring(end + INDEX_REPLACE_END.length());
+        String titleTag = String.format(TITLE_TEMPLATE, title);
+        String favIcon = String.format(FAVICON_TEMPLATE, PNG_TYPE, DEFAULT_ICON);
+        String baseUrl = String.format(BASEURL_TEMPLATE, baseHref);
+        return topContent + CRLF + titleTag + CRLF + favIcon + CRLF + baseUrl + CRLF + endContent;
     }
 
     private void serveFile(File file, EndpointRequest request, EndpointResponse response) {
-        LOG.info("Serving file " + file.getAbsolutePath());
-        // Prepare some variables. The ETag is an unique identifier of the file.
+        LOG.debug("Serving file {}", file);
+        // Resolve the asset from the cache, the file is only read again when its
+        // length or last modification date changed. Files above the stream threshold
+        // are never loaded on the heap, they are held in direct buffers or copied from
+        // disk to the response as they are served.
         String fileName = file.getName();
-        long length = file.length();
-        long lastModified = file.lastModified();
-        String eTag = fileName + "_" + length + "_" + lastModified;
+        // When the directories are watched, a cached asset is up to date and the file
+        // is not checked.
+        StaticAsset asset = context.isWatched() ? ASSET_CACHE.peek(file) : null;
+        try {
+            if (asset == null && file.length() > context.getStreamThreshold()) {
+                asset = ASSET_CACHE.getLarge(file, cached -> resolveContentType(request, cached.getName()),
+                        context.getDigestIndex());
+            } else if (asset == null) {
+                asset = ASSET_CACHE.get(file, cached -> resolveContentType(request, cached.getName()),
+                        context.getDigestIndex());
+            }
+        } catch (NoSuchFileException noSuchFileException) {
+            // the cached lookup is outdated, the next request resolves the path again
+            LOOKUP_CACHE.invalidate(this.appCode);
+            setStatus(response, 404);
+            response.setErrorMessage("File not found " + fileName);
+            return;
+        } catch (IOException ioException) {
+            setStatus(response, 400);
+            response.setErrorMessage("Encountered error while trying to load " + fileName);
+            return;
+        }
+        serveAsset(asset, file, fileName, request, response);
+    }
+
+    /**
+     * Serves an asset, handling the conditional, range and encoding headers.
+     *
+     * @param asset    The asset to serve
+     * @param file     The file of the asset, null if the asset is not backed by a
+     *                 file
+     * @param fileName The name sent in the Content-Disposition header
+     * @param request  The request being served
+     * @param response The response to write to
+     */
+    private void serveAsset(StaticAsset asset, File file, String fileName, EndpointRequest request,
+            EndpointResponse response) {
+        // Prepare some variables. The ETag is an unique identifier of the file.
+        long length = asset.getLength();
+        long lastModified = asset.getLastModified();
+        String eTag = asset.getETag();
         long expires = System.currentTimeMillis() + DEFAULT_EXPIRE_TIME;
+        // Negotiate the content encoding. Ranges always apply to the identity encoding
+        // and each compressed variant gets its own ETag.
+        // Assets that are not held in memory are only served encoded when they come
+        // with precompressed representations.
+        boolean compressible = (asset.getContent() != null || asset.hasEncodings()) && length >= MIN_COMPRESS_SIZE
+                && isCompressible(asset.getContentType());
+        String encoding = null;
+        byte[] content = asset.getContent();
+        StaticAsset encoded = null;
+        if (compressible) {
+            response.setHeader("Vary", "Accept-Encoding");
+            String acceptEncoding = request.getHeader("Accept-Encoding");
+            if (acceptEncoding != null && request.getHeader("Range") == null) {
+                for (String candidate : new String[] { BROTLI, GZIP }) {
+                    if (!HeaderTokenizer.acceptsCoding(acceptEncoding, candidate)) {
+                        continue;
+                    }
+                    encoded = asset.getEncoding(candidate);
+                    byte[] variant = encoded != null || content == null ? null
+                            : ASSET_CACHE.getVariant(asset, file, candidate);
+                    if (encoded != null || variant != null) {
+                        encoding = candidate;
+                        content = variant;
+                        eTag = DigestIndex.variantETag(eTag, candidate);
+                        break;
+                    }
+                }
+            }
+        }
         // Validate request headers for caching
         // ---------------------------------------------------
         // If-None-Match header should contain "*" or ETag. If so, then return 304.
         String ifNoneMatch = request.getHeader("If-None-Match");
-        if (ifNoneMatch != null && matches(ifNoneMatch, eTag)) {
-            response.setStatus(304);
+        if (ifNoneMatch != null && HeaderTokenizer.matchesETag(ifNoneMatch, eTag, true)) {
+            setStatus(response, 304);
             // Required in 304.
             response.setHeader("ETag", eTag);
             // Postpone cache with 1 week.
             response.setDateHeader("Expires", expires);
-            LOG.info("If-None-Match");
+            LOG.debug("If-None-Match");
             return;
         }
         // If-Modified-Since header should be greater than LastModified. If so, then
         // return 304.
         // This header is ignored if any If-None-Match header is specified.
         long ifModifiedSince = request.getDateHeader("If-Modified-Since");
-        if (ifNoneMatch == null && ifModifiedSince != -1 && ifModifiedSince + 1000 > lastModified) {
-            response.setStatus(304);
+        if (ifNoneMatch == null && ifModifiedSince != -1 && lastModified != StaticAsset.NO_LAST_MODIFIED
+                && ifModifiedSince + 1000 > lastModified) {
+            setStatus(response, 304);
             // Required in 304.
             response.setHeader("ETag", eTag);
             // Postpone cache with 1 week.
             response.setDateHeader("Expires", expires);
-            LOG.info("If-Modified-Match");
+            LOG.debug("If-Modified-Match");
             return;
         }
         // Validate request headers for resume
         // ----------------------------------------------------
         // If-Match header should contain "*" or ETag. If not, then return 412.
         String ifMatch = request.getHeader("If-Match");
-        if (ifMatch != null && !matches(ifMatch, eTag)) {
-            response.setStatus(412);
-            LOG.info("If-Match");
+        if (ifMatch != null && !HeaderTokenizer.matchesETag(ifMatch, eTag, false)) {
+            setStatus(response, 412);
+            LOG.debug("If-Match");
             return;
         }
         // If-Unmodified-Since header should be greater than LastModified. If not, then
         // return 412.
         long ifUnmodifiedSince = request.getDateHeader("If-Unmodified-Since");
-        if (ifUnmodifiedSince != -1 && ifUnmodifiedSince + 1000 <= lastModified) {
-            response.setStatus(412);
-            LOG.info("If-Unmodified-Since");
+        if (ifUnmodifiedSince != -1 && lastModified != StaticAsset.NO_LAST_MODIFIED
+                && ifUnmodifiedSince + 1000 <= lastModified) {
+            setStatus(response, 412);
+            LOG.debug("If-Unmodified-Since");
             return;
         }
+        // Validate and process range
+        // -------------------------------------------------------------
+        // The full range represents the complete file, it is served when no Range
+        // header is sent or when the If-Range validator does not match anymore.
+        ByteRange full = new ByteRange(0, length - 1, length);
+        List<ByteRange> ranges = new ArrayList<>();
+        String range = request.getHeader("Range");
+        if (range != null) {
+            // Range header should match format "bytes=n-n,n-n,n-n...". If not, then
+            // return 416.
+            if (!RANGE_PATTERN.matcher(range).matches()) {
+                rangeNotSatisfiable(response, length);
+                LOG.debug("Invalid Range {}", range);
+                return;
+            }
+            // If-Range header should either match ETag or be greater then LastModified.
+            // If not, then return full file.
+            String ifRange = request.getHeader("If-Range");
+            if (ifRange != null && !ifRange.equals(eTag)) {
+                try {
+                    long ifRangeTime = request.getDateHeader("If-Range");
+                    if (ifRangeTime == -1 || lastModified == StaticAsset.NO_LAST_MODIFIED
+                            || ifRangeTime + 1000 <= lastModified) {
+                        ranges.add(full);
+                    }
+                } catch (IllegalArgumentException ignored) {
+                    ranges.add(full);
+                }
+            }
+            // If any valid If-Range header, then process each part of byte range.
+            if (ranges.isEmpty()) {
+                for (String part : range.substring(range.indexOf('=') + 1).split(",")) {
+                    part = part.trim();
+                    int dash = part.indexOf('-');
+                    long start;
+                    long end;
+                    try {
+                        start = sublong(part, 0, dash);
+                        end = sublong(part, dash + 1, part.length());
+                    } catch (NumberFormatException e) {
+                        continue;
+                    }
+                    if (start == -1 && end == -1) {
+                        continue;
+                    } else if (start == -1) {
+                        // bytes=-n is the suffix of n bytes
+                        start = Math.max(0, length - end);
+                        end = length - 1;
+                    } else if (end == -1 || end > length - 1) {
+                        end = length - 1;
+                    }
+                    // Skip the parts outside of the file, 416 is returned when none is left.
+                    if (start > end || start >= length) {
+                        continue;
+                    }
+                    ranges.add(new ByteRange(start, end, length));
+                }
+                if (ranges.isEmpty() || ranges.size() > MAX_RANGES) {
+                    rangeNotSatisfiable(response, length);
+                    LOG.debug("Unsatisfiable Range {}", range);
+                    return;
+                }
+            }
+        }
         // Prepare and initialize response
         // --------------------------------------------------------
         // Get content type by file name and set default GZIP support and content
         // disposition.
-        String contentType = request.getServletContext().getMimeType(fileName);
-        LOG.info("Servlet context found MIME=" + contentType);
-        boolean acceptsGzip = false;
+        String contentType = asset.getContentType();
         String disposition = "inline";
-        // To add new content types, add new mime-mapping entry in web.xml.
-        if (contentType == null) {
-            if (fileName.endsWith(".js")) {
-                contentType = "application/javascript";
-            }
-            contentType = "application/octet-stream";
-        }
         // the browser and expand content type with the one and right character
         // encoding.
         if (contentType.startsWith("text")) {
-            String acceptEncoding = request.getHeader("Accept-Encoding");
-            acceptsGzip = acceptEncoding != null && accepts(acceptEncoding, "gzip");
             contentType += ";charset=UTF-8";
         } else // the browser, then set to inline, else attachment which will pop a 'save as'
                // dialogue.
         if (!contentType.startsWith("image")) {
             String accept = request.getHeader("Accept");
-            disposition = accept != null && accepts(accept, contentType) ? "inline" : "attachment";
+            disposition = accept != null && HeaderTokenizer.acceptsMediaType(accept, contentType) ? "inline"
+                    : "attachment";
         }
-        LOG.info(" content-type:" + contentType);
+        LOG.debug("content-type: {}", contentType);
         // Initialize response.
         response.setBufferSize(DEFAULT_BUFFER_SIZE);
-        response.setContentType(contentType);
         response.setHeader("Content-Disposition", disposition + ";filename=\"" + fileName + "\"");
         response.setHeader("Accept-Ranges", "bytes");
         response.setHeader("ETag", eTag);
-        response.setDateHeader("Last-Modified", lastModified);
+        if (lastModified != StaticAsset.NO_LAST_MODIFIED) {
+            response.setDateHeader("Last-Modified", lastModified);
+        }
         response.setDateHeader("Expires", expires);
+        // Send requested file (part(s)) to client
+        // ------------------------------------------------
+        // Each branch sets its status and remaining headers before the body is
+        // streamed, see openOutput.
         try {
-            response.setOutput(Files.readAllBytes(file.toPath()));
+            if (ranges.isEmpty() || ranges.get(0) == full) {
+                // Return full file.
+                response.setContentType(contentType);
+                if (encoding != null) {
+                    response.setHeader("Content-Encoding", encoding);
+                }
+                if (content != null) {
+                    response.setOutput(content);
+                    bytesServed = content.length;
+                } else if (encoded != null) {
+                    streamAsset(encoded, new ByteRange(0, encoded.getLength() - 1, encoded.getLength()),
+                            response);
+                    bytesServed = encoded.getLength();
+                } else {
+                    streamAsset(asset, full, response);
+                    bytesServed = length;
+                }
+            } else if (ranges.size() == 1) {
+                // Return single part of file.
+                ByteRange part = ranges.get(0);
+                response.setContentType(contentType);
+                response.setHeader("Content-Range", part.toContentRange());
+                setStatus(response, 206);
+                if (asset.getContent() != null) {
+                    response.setOutput(Arrays.copyOfRange(asset.getContent(), (int) part.getStart(),
+                            (int) part.getEnd() + 1));
+                } else {
+                    streamAsset(asset, part, response);
+                }
+                bytesServed = part.getLength();
+            } else {
+                // Return multiple parts of file.
+                response.setContentType("multipart/byteranges; boundary=" + MULTIPART_BOUNDARY);
+                setStatus(response, 206);
+                if (asset.getContent() != null) {
+                    ByteArrayOutputStream output = new ByteArrayOutputStream();
+                    writeMultipart(asset, contentType, ranges, output);
+                    response.setOutput(output.toByteArray());
+                    bytesServed = output.size();
+                } else {
+                    CountingOutputStream output = new CountingOutputStream(openOutput(response), 0);
+                    writeMultipart(asset, contentType, ranges, output);
+                    output.flush();
+                    bytesServed = output.getPosition();
+                }
+            }
         } catch (IOException ioException) {
-            response.setStatus(400);
-            response.setErrorMessage("Encountered error while trying to load " + fileName);
+            LOG.error("Failed to send file " + asset.getPath(), ioException);
+            if (committed) {
+                // the status is already sent, the client gets a truncated body
+                status = 400;
+            } else {
+                setStatus(response, 400);
+                response.setErrorMessage("Encountered error while trying to load " + fileName);
+            }
         }
     }
 
-    // Helpers (can be refactored to public utility class)
-    // ----------------------------------------
     /**
-     * Returns true if the given accept header accepts the given value.
+     * Writes the given ranges of the asset as a multipart/byteranges body.
      *
-     * @param acceptHeader The accept header.
-     * @param toAccept     The value to be accepted.
-     * @return True if the given accept header accepts the given value.
+     * @param asset       The asset to send
+     * @param contentType The content type of each part
+     * @param ranges      The ranges to write
+     * @param output      The stream to write to
+     * @throws IOException if the asset cannot be read or the output written
      */
-    private static boolean accepts(String acceptHeader, String toAccept) {
-        String[] acceptValues = acceptHeader.split("\\s*(,|;)\\s*");
-        Arrays.sort(acceptValues);
-        return Arrays.binarySearch(acceptValues, toAccept) > -1
-                || Arrays.binarySearch(acceptValues, toAccept.replaceAll("/.*$", "/*")) > -1
-                || Arrays.binarySearch(acceptValues, "*/*") > -1;
+    private static void writeMultipart(StaticAsset asset, String contentType, List<ByteRange> ranges,
+            OutputStream output) throws IOException {
+        for (ByteRange part : ranges) {
+            // Add multipart boundary and header fields for every range.
+            String header = CRLF + "--" + MULTIPART_BOUNDARY + CRLF + "Content-Type: " + contentType + CRLF
+                    + "Content-Range: " + part.toContentRange() + CRLF + CRLF;
+            output.write(header.getBytes(StandardCharsets.US_ASCII));
+            if (asset.getContent() != null) {
+                output.write(asset.getContent(), (int) part.getStart(), (int) part.getLength());
+            } else {
+                asset.getSource().transfer(part.getStart(), part.getLength(), output);
+            }
+        }
+        // End with multipart boundary.
+        output.write((CRLF + "--" + MULTIPART_BOUNDARY + "--" + CRLF).getBytes(StandardCharsets.US_ASCII));
     }
 
     /**
-     * Returns true if the given match header matches the given value.
+     * @param contentType The content type of a file
+     * @return true if files of that type benefit from compression
+     */
+    static boolean isCompressible(String contentType) {
+        return contentType.startsWith("text") || contentType.startsWith("application/javascript")
+                || contentType.startsWith("application/json") || contentType.startsWith("application/xml")
+                || contentType.startsWith("image/svg+xml") || contentType.startsWith(ImportMapStore.JSON_TYPE);
+    }
+
+    private void rangeNotSatisfiable(EndpointResponse response, long length) {
+        // Required in 416.
+        response.setHeader("Content-Range", "bytes */" + length);
+        setStatus(response, 416);
+    }
+
+    /**
+     * Copies a range of an asset that is not held in memory to the response
+     * output.
      *
-     * @param matchHeader The match header.
-     * @param toMatch     The value to be matched.
-     * @return True if the given match header matches the given value.
+     * @param asset    The asset to copy
+     * @param range    The range of bytes to copy
+     * @param response The response to write to
+     * @throws IOException if the asset cannot be read or the response written
      */
-    private static boolean matches(String matchHeader, String toMatch) {
-        String[] matchValues = matchHeader.split("\\s*,\\s*");
-        Arrays.sort(matchValues);
-        return Arrays.binarySearch(matchValues, toMatch) > -1 || Arrays.binarySearch(matchValues, "*") > -1;
+    private void streamAsset(StaticAsset asset, ByteRange range, EndpointResponse response) throws IOException {
+        response.setHeader("Content-Length", String.valueOf(range.getLength()));
+        OutputStream output = openOutput(response);
+        asset.getSource().transfer(range.getStart(), range.getLength(), output);
+        output.flush();
     }
+
+    /**
+     * Resolves the content type of a file from its name.
+     *
+     * @param request  The request being served
+     * @param fileName The name of the file
+     * @return The content type, never null
+     */
+    private static String resolveContentType(EndpointRequest request, String fileName) {
+        return resolveContentType(request.getServletContext(), fileName);
+    }
+
+    private static String resolveContentType(ServletContext servletContext, String fileName) {
+        String contentType = servletContext.getMimeType(fileName);
+        LOG.debug("Servlet context found MIME={}", contentType);
+        // To add new content types, add new mime-mapping entry in web.xml.
+        if (contentType == null) {
+            if (fileName.endsWith(".js")) {
+                contentType = "application/javascript";
+            }
+            contentType = "application/octet-stream";
+        }
+        return contentType;
+    }
+
+    // Helpers (can be refactored to public utility class)
+    // ----------------------------------------
+    /**
+     * Returns a substring of the given string value from the given begin index to
+     * the given end index as a long. If the substring is empty, then -1 will be
+     * returned
+     *
+     * @param value      The string value to return a substring as long for.
+     * @param beginIndex The begin index of the substring to be returned as long.
+     * @param endIndex   The end index of the substring to be returned as long.
+     * @return A substring of the given string value as long or -1 if substring is
+     *         empty.
+     */
+    private static long sublong(String value, int beginIndex, int endIndex) {
+        String substring = value.substring(beginIndex, endIndex).trim();
+        return (substring.length() > 0) ? Long.parseLong(substring) : -1;
+    }
+
 }
 
 class HtmlApplicationSerializer {
@@ -328,12 +1201,55 @@ class HtmlApplicationSerializer {
 
     static final String ln = System.lineSeparator();
 
+    static final String WEB_PAGE_CET = "ApplicationWebPage";
+
+    static final String STYLESHEET_CET = "CSSStyleSheet";
+
     static CustomEntityInstanceService customEntityInstanceService;
 
     static String getHtml(CustomEntityInstance app, String remainingPath, CustomEntityInstanceService ceis) {
+        return getHtml(app, remainingPath, ceis, new HashSet<>());
+    }
+
+    /**
+     * @param app           The WebApplication instance
+     * @param remainingPath The path of the page
+     * @param ceis          The service used to load the page and its stylesheets
+     * @param dependencies  Collects the instances the page is built from, see
+     *                      {@link PageCache#dependency(String, String)}
+     * @return The html of the page
+     */
+    static String getHtml(CustomEntityInstance app, String remainingPath, CustomEntityInstanceService ceis,
+            Set<String> dependencies) {
+        StringBuilder result = new StringBuilder();
+        try {
+            writeHtml(app, remainingPath, ceis, dependencies, result);
+        } catch (IOException e) {
+            // a StringBuilder does not throw
+            throw new UncheckedIOException(e);
+        }
+        return result.toString();
+    }
+
+    /**
+     * Writes the html of the page fragment by fragment. When the output is
+     * {@link Flushable}, it is flushed after each fragment so that the page is
+     * sent while it is rendered.
+     *
+     * @param app           The WebApplication instance
+     * @param remainingPath The path of the page
+     * @param ceis          The service used to load the page and its stylesheets
+     * @param dependencies  Collects the instances the page is built from
+     * @param out           The output to write to
+     * @throws IOException if the output cannot be written
+     */
+    static void writeHtml(CustomEntityInstance app, String remainingPath, CustomEntityInstanceService ceis,
+            Set<String> dependencies, Appendable out) throws IOException {
         customEntityInstanceService = ceis;
         if (app.getCfValues().getCfValue("webPages") == null) {
-            return docType + "<html><body><h1>" + app.getDescription() + "</h1></body></html>";
+            out.append(docType).append("<html><body><h1>").append(app.getDescription())
+                    .append("</h1></body></html>");
+            return;
         }
         Map<String, EntityReferenceWrapper> webpages = (Map<String, EntityReferenceWrapper>) app.getCfValues()
                 .getCfValue("webPages").getMapValue();
@@ -342,60 +1258,139 @@ class HtmlApplicationSerializer {
             webpage = webpages.get(remainingPath);
         }
         if (webpage == null) {
-            return docType + "<html><body><h1>Page " + remainingPath + " not found among "
-                    + app.getCfValues().getValues() + "</h1></body></html>";
+            dependencies.add(PageCache.MISSING);
+            out.append(docType).append("<html><body><h1>Page ").append(remainingPath).append(" not found among ")
+                    .append(String.valueOf(app.getCfValues().getValues())).append("</h1></body></html>");
+            return;
         }
-        StringBuilder result = new StringBuilder();
-        result.append(docType).append(ln);
-        result.append("<html>").append(ln);
-        result.append("<head>").append(ln);
-        if (app.getCfValues().getCfValue("stylesheets") != null) {
-            Map<String, EntityReferenceWrapper> stylesheets = (Map<String, EntityReferenceWrapper>) app.getCfValues()
-                    .getCfValue("stylesheets").getListValue();
-            if (stylesheets != null && stylesheets.size() > 0) {
-                result.append(getStyleSheets(stylesheets));
-            }
+        // load the page, then each stylesheet shared by the application and the page once
+        dependencies.add(PageCache.dependency(WEB_PAGE_CET, webpage.getCode()));
+        CustomEntityInstance webpageInstance = findByCodes(WEB_PAGE_CET, Collections.singleton(webpage.getCode()))
+                .get(webpage.getCode());
+        if (webpageInstance == null) {
+            dependencies.add(PageCache.MISSING);
+            out.append(docType).append("<html><body><h1>Page ").append(webpage.getCode())
+                    .append(" does not exist</h1></body></html>");
+            return;
         }
-        result.append(getWebpageHtml(webpage));
-        result.append("</html>").append(ln);
-        return result.toString();
+        Collection<EntityReferenceWrapper> appStylesheets = getStyleSheetReferences(app);
+        Collection<EntityReferenceWrapper> pageStylesheets = getStyleSheetReferences(webpageInstance);
+        Set<String> stylesheetCodes = new LinkedHashSet<>();
+        appStylesheets.forEach(stylesheet -> stylesheetCodes.add(stylesheet.getCode()));
+        pageStylesheets.forEach(stylesheet -> stylesheetCodes.add(stylesheet.getCode()));
+        stylesheetCodes.forEach(code -> dependencies.add(PageCache.dependency(STYLESHEET_CET, code)));
+        Map<String, CustomEntityInstance> stylesheets = findByCodes(STYLESHEET_CET, stylesheetCodes);
+
+        out.append(docType).append(ln);
+        out.append("<html>").append(ln);
+        out.append("<head>").append(ln);
+        if (appStylesheets.size() > 0) {
+            writeStyleSheets(appStylesheets, stylesheets, out);
+        }
+        writeWebpageHtml(webpageInstance, pageStylesheets, stylesheets, out);
+        out.append("</html>").append(ln);
+        flush(out);
     }
 
-    static String getWebpageHtml(EntityReferenceWrapper webpageWrapper) {
-        StringBuilder result = new StringBuilder();
-        CustomEntityInstance webpage = customEntityInstanceService.findByCodeByCet("ApplicationWebPage",
-                webpageWrapper.getCode());
-        result.append("<title>").append(webpage.getDescription()).append("</title>");
-        if (webpage.getCfValues().getCfValue("stylesheets") != null) {
-            Map<String, EntityReferenceWrapper> stylesheets = (Map<String, EntityReferenceWrapper>) webpage
-                    .getCfValues().getCfValue("stylesheets").getListValue();
-            if (stylesheets != null && stylesheets.size() > 0) {
-                result.append(getStyleSheets(stylesheets));
-            }
+    static void writeWebpageHtml(CustomEntityInstance webpage,
+            Collection<EntityReferenceWrapper> stylesheetReferences, Map<String, CustomEntityInstance> stylesheets,
+            Appendable out) throws IOException {
+        out.append("<title>").append(webpage.getDescription()).append("</title>");
+        if (stylesheetReferences.size() > 0) {
+            writeStyleSheets(stylesheetReferences, stylesheets, out);
         }
-        result.append("</head>").append(ln);
+        out.append("</head>").append(ln);
+        flush(out);
         if (webpage.getCfValues().getCfValue("body") != null) {
-            result.append("<body>").append(ln).append(webpage.getCfValues().getCfValue("body").getStringValue())
+            out.append("<body>").append(ln).append(webpage.getCfValues().getCfValue("body").getStringValue())
                     .append("</body>").append(ln);
+            flush(out);
         }
-        return result.toString();
     }
 
-    static String getStyleSheets(Map<String, EntityReferenceWrapper> stylesheets) {
-        StringBuilder result = new StringBuilder();
-        for (EntityReferenceWrapper stylesheetWrapper : stylesheets.values()) {
-            CustomEntityInstance stylesheet = customEntityInstanceService.findByCodeByCet("CSSStyleSheet",
-                    stylesheetWrapper.getCode());
+    static void writeStyleSheets(Collection<EntityReferenceWrapper> stylesheetReferences,
+            Map<String, CustomEntityInstance> stylesheets, Appendable out) throws IOException {
+        for (EntityReferenceWrapper stylesheetWrapper : stylesheetReferences) {
+            CustomEntityInstance stylesheet = stylesheets.get(stylesheetWrapper.getCode());
+            if (stylesheet == null) {
+                continue;
+            }
             if (stylesheet.getCfValues().getCfValue("externalURL") != null) {
-                result.append("<link rel=\"stylesheet\" href=\"")
+                out.append("<link rel=\"stylesheet\" href=\"")
                         .append(stylesheet.getCfValues().getCfValue("externalURL").getStringValue()).append("\">")
                         .append(ln);
             } else {
-                result.append("<style>").append(stylesheet.getCfValues().getCfValue("content").getStringValue())
+                out.append("<style>").append(stylesheet.getCfValues().getCfValue("content").getStringValue())
                         .append("</style>").append(ln);
+                flush(out);
             }
         }
-        return result.toString();
+    }
+
+    private static void flush(Appendable out) throws IOException {
+        if (out instanceof Flushable) {
+            ((Flushable) out).flush();
+        }
+    }
+
+    /**
+     * @param instance A WebApplication or ApplicationWebPage instance
+     * @return the stylesheets referenced by the instance, empty if its
+     *         {@code stylesheets} field is not set
+     */
+    static Collection<EntityReferenceWrapper> getStyleSheetReferences(CustomEntityInstance instance) {
+        CustomFieldValue value = instance == null || instance.getCfValues() == null ? null
+                : instance.getCfValues().getCfValue("stylesheets");
+        if (value == null) {
+            return Collections.emptyList();
+        }
+        // the field is stored as a list of references, or as a map of them by older versions
+        Collection<?> references = value.getListValue();
+        if (references == null && value.getMapValue() != null) {
+            references = value.getMapValue().values();
+        }
+        if (references == null) {
+            return Collections.emptyList();
+        }
+        List<EntityReferenceWrapper> stylesheets = new ArrayList<>(references.size());
+        for (Object reference : references) {
+            if (reference instanceof EntityReferenceWrapper) {
+                stylesheets.add((EntityReferenceWrapper) reference);
+            }
+        }
+        return stylesheets;
+    }
+
+    /**
+     * Loads the instances of a custom entity template matching the given codes in
+     * a single query, whatever the number of codes.
+     *
+     * @param cetCode The code of the custom entity template
+     * @param codes   The codes of the instances
+     * @return The instances found, by code, in the order of {@code codes}
+     */
+    static Map<String, CustomEntityInstance> findByCodes(String cetCode, Collection<String> codes) {
+        if (codes.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        List<CustomEntityInstance> instances = customEntityInstanceService.getEntityManager()
+                .createQuery("from CustomEntityInstance where cetCode = :cetCode and code in :codes",
+                        CustomEntityInstance.class)
+                .setParameter("cetCode", cetCode)
+                .setParameter("codes", new ArrayList<>(codes))
+                .getResultList();
+        Map<String, CustomEntityInstance> byCode = new HashMap<>();
+        for (CustomEntityInstance instance : instances) {
+            byCode.put(instance.getCode(), instance);
+        }
+        Map<String, CustomEntityInstance> result = new LinkedHashMap<>();
+        for (String code : codes) {
+            CustomEntityInstance instance = byCode.get(code);
+            if (instance != null) {
+                result.put(code, instance);
+            }
+        }
+        return result;
     }
 }
 
@@ -0,0 +1,418 @@
+/*
+ * (C) Copyright 2018-2019 Manaty SARL (https://manaty.net) and contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Affero General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. This program is
+ * not suitable for any direct or indirect application in MILITARY industry See the GNU Affero
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.manaty.webapp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A web application packed in a single file and served from one read-only
+ * memory mapping. The file starts with a header holding the offset of the
+ * index, followed by the contents of the files and their precompressed
+ * variants, and ends with the index of the entries. Lookups are a single hash
+ * map probe and no file of the application is opened when it is served.
+ */
+class WebAppBundle {
+
+    static final String EXTENSION = ".bundle";
+
+    private static final Logger LOG = LoggerFactory.getLogger(WebAppBundle.class);
+    private static final byte[] MAGIC = "WABUNDL1".getBytes(StandardCharsets.US_ASCII);
+    private static final int HEADER_SIZE = MAGIC.length + Long.BYTES;
+    private static final long CHECK_INTERVAL = 1000L;
+    private static final String INDEX_FILE = "index.html";
+    private static final String[] ENCODINGS = { "br", "gzip" };
+    private static final Map<String, Holder> BUNDLES = new ConcurrentHashMap<>();
+    private static final Map<String, String> CONTENT_TYPES = new HashMap<>();
+
+    static {
+        CONTENT_TYPES.put("html", "text/html");
+        CONTENT_TYPES.put("css", "text/css");
+        CONTENT_TYPES.put("js", "application/javascript");
+        CONTENT_TYPES.put("mjs", "application/javascript");
+        CONTENT_TYPES.put("json", "application/json");
+        CONTENT_TYPES.put("map", "application/json");
+        CONTENT_TYPES.put("svg", "image/svg+xml");
+        CONTENT_TYPES.put("png", "image/png");
+        CONTENT_TYPES.put("jpg", "image/jpeg");
+        CONTENT_TYPES.put("jpeg", "image/jpeg");
+        CONTENT_TYPES.put("gif", "image/gif");
+        CONTENT_TYPES.put("ico", "image/x-icon");
+        CONTENT_TYPES.put("woff", "font/woff");
+        CONTENT_TYPES.put("woff2", "font/woff2");
+        CONTENT_TYPES.put("wasm", "application/wasm");
+        CONTENT_TYPES.put("txt", "text/plain");
+    }
+
+    /**
+     * A file of the bundle.
+     */
+    static class Entry {
+        private final String path;
+        private final String hash;
+        private final long offset;
+        private final StaticAsset asset;
+        private final boolean indexTemplate;
+
+        private Entry(String path, String hash, long offset, StaticAsset asset, boolean indexTemplate) {
+            this.path = path;
+            this.hash = hash;
+            this.offset = offset;
+            this.asset = asset;
+            this.indexTemplate = indexTemplate;
+        }
+
+        String getName() {
+            return path.substring(path.lastIndexOf('/') + 1);
+        }
+
+        String getHash() {
+            return hash;
+        }
+
+        /**
+         * @return the asset streaming the entry from the mapping
+         */
+        StaticAsset getAsset() {
+            return asset;
+        }
+
+        /**
+         * @return true if the entry is the index.html template of the application
+         */
+        boolean isIndexTemplate() {
+            return indexTemplate;
+        }
+    }
+
+    private final long length;
+    private final long lastModified;
+    private final ByteBuffer buffer;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final Set<String> directories = new HashSet<>();
+    private Entry indexTemplate;
+
+    private WebAppBundle(long length, long lastModified, ByteBuffer buffer) {
+        this.length = length;
+        this.lastModified = lastModified;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Returns the bundle mapped from the given file. The file is checked at most
+     * once per second and mapped again when it was replaced.
+     *
+     * @param file         The bundle file
+     * @param contentTypes Resolves the content type of a file from its name, so
+     *                     that files are served with the same type from the
+     *                     bundle as from the directories
+     * @return The bundle, or null if the file does not exist or is not a valid
+     *         bundle
+     */
+    static WebAppBundle find(File file, UnaryOperator<String> contentTypes) {
+        return BUNDLES.computeIfAbsent(file.getAbsolutePath(), key -> new Holder()).get(file, contentTypes);
+    }
+
+    /**
+     * Packs the files of a directory into a bundle. Precompressed siblings
+     * ({@code app.js.gz}, {@code app.js.br}) are stored as variants of their
+     * file and a gzip variant is computed for the other compressible files. The
+     * bundle is written next to the target and moved in place atomically.
+     *
+     * @param directory The directory of the application
+     * @param target    The bundle file to write
+     * @return The number of files packed
+     * @throws IOException if a file cannot be read or the bundle written
+     */
+    static int write(File directory, File target) throws IOException {
+        Path root = directory.toPath();
+        List<Path> files;
+        try (java.util.stream.Stream<Path> walk = Files.walk(root)) {
+            files = walk.filter(path -> !root.relativize(path).startsWith(".git"))
+                    .filter(Files::isRegularFile)
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        Set<Path> packed = new HashSet<>(files);
+        Path temporary = new File(target.getPath() + ".tmp").toPath();
+        int count = 0;
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.position(HEADER_SIZE);
+            CountingOutputStream data = new CountingOutputStream(
+                    new java.io.BufferedOutputStream(Channels.newOutputStream(channel)), HEADER_SIZE);
+            ByteArrayOutputStream index = new ByteArrayOutputStream();
+            DataOutputStream indexOutput = new DataOutputStream(index);
+            for (Path path : files) {
+                String name = path.getFileName().toString();
+                if ((name.endsWith(".gz") || name.endsWith(".br"))
+                        && packed.contains(path.resolveSibling(name.substring(0, name.length() - 3)))) {
+                    // stored as a variant of its file
+                    continue;
+                }
+                byte[] content = Files.readAllBytes(path);
+                String contentType = contentTypeOf(name);
+                Map<String, byte[]> variants = variantsOf(path, content, contentType);
+                indexOutput.writeUTF(root.relativize(path).toString().replace(File.separatorChar, '/'));
+                indexOutput.writeUTF(contentType);
+                indexOutput.writeUTF(DigestIndex.hash(content));
+                indexOutput.writeLong(data.getPosition());
+                indexOutput.writeLong(content.length);
+                data.write(content);
+                indexOutput.writeByte(variants.size());
+                for (Map.Entry<String, byte[]> variant : variants.entrySet()) {
+                    indexOutput.writeUTF(variant.getKey());
+                    indexOutput.writeLong(data.getPosition());
+                    indexOutput.writeLong(variant.getValue().length);
+                    data.write(variant.getValue());
+                }
+                count++;
+            }
+            long indexOffset = data.getPosition();
+            DataOutputStream output = new DataOutputStream(data);
+            output.writeInt(count);
+            index.writeTo(output);
+            output.flush();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.put(MAGIC).putLong(indexOffset).flip();
+            channel.write(header, 0);
+            channel.force(true);
+        }
+        Files.move(temporary, target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count;
+    }
+
+    /**
+     * Resolves a request path the same way it is resolved in the directory of
+     * the application: a directory serves the index.html of its first segment.
+     * Unknown paths are not resolved, so that they are looked up in the
+     * directories and pages of the application, see {@link #getIndexTemplate()}.
+     *
+     * @param remainingPath The path requested under the application
+     * @return The entry to serve, or null if there is none
+     * @throws IOException if the path cannot be decoded
+     */
+    Entry resolve(String remainingPath) throws IOException {
+        String path = GitTreeSource.normalize(URLDecoder.decode(remainingPath, "UTF-8"));
+        if (path == null) {
+            return null;
+        }
+        Entry entry = entries.get(path);
+        if (entry != null) {
+            return entry;
+        }
+        if (path.isEmpty() || directories.contains(path)) {
+            int subFolderIndex = path.indexOf('/');
+            String subFolder = subFolderIndex > -1 ? path.substring(0, subFolderIndex) : path;
+            entry = entries.get(subFolder.isEmpty() ? INDEX_FILE : subFolder + "/" + INDEX_FILE);
+            if (entry != null) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the index.html template of the bundle, served in place of the one
+     *         of the directories when a path falls back to it, or null if the
+     *         bundle has no index.html
+     */
+    Entry getIndexTemplate() {
+        return indexTemplate;
+    }
+
+    /**
+     * @param entry An entry of the bundle
+     * @return the content of the entry decoded as UTF-8
+     */
+    String read(Entry entry) {
+        byte[] content = new byte[(int) entry.getAsset().getLength()];
+        ByteBuffer slice = buffer.duplicate();
+        slice.position((int) entry.offset);
+        slice.get(content);
+        return new String(content, StandardCharsets.UTF_8);
+    }
+
+    long getLastModified() {
+        return lastModified;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    private static WebAppBundle open(File file, long length, long lastModified, UnaryOperator<String> contentTypes)
+            throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Bundle " + file + " is larger than 2GB");
+        }
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        }
+        byte[] magic = new byte[MAGIC.length];
+        buffer.duplicate().get(magic);
+        if (length < HEADER_SIZE || !Arrays.equals(magic, MAGIC)) {
+            throw new IOException(file + " is not a web application bundle");
+        }
+        long indexOffset = buffer.getLong(MAGIC.length);
+        if (indexOffset < HEADER_SIZE || indexOffset > length) {
+            throw new IOException("Bundle " + file + " is corrupted");
+        }
+        WebAppBundle bundle = new WebAppBundle(length, lastModified, buffer);
+        byte[] index = new byte[(int) (length - indexOffset)];
+        ByteBuffer indexBuffer = buffer.duplicate();
+        indexBuffer.position((int) indexOffset);
+        indexBuffer.get(index);
+        DataInputStream input = new DataInputStream(new java.io.ByteArrayInputStream(index));
+        int count = input.readInt();
+        for (int i = 0; i < count; i++) {
+            String path = input.readUTF();
+            // the type stored when packing is only a guess, the servlet mapping is authoritative
+            input.readUTF();
+            String contentType = contentTypes.apply(path.substring(path.lastIndexOf('/') + 1));
+            String hash = input.readUTF();
+            String eTag = "\"" + hash + "\"";
+            long offset = input.readLong();
+            StaticAsset asset = bundle.asset(path, contentType, eTag, offset, input.readLong(), indexOffset);
+            int variants = input.readUnsignedByte();
+            for (int v = 0; v < variants; v++) {
+                String encoding = input.readUTF();
+                asset.putEncoding(encoding, bundle.asset(path, contentType, DigestIndex.variantETag(eTag, encoding),
+                        input.readLong(), input.readLong(), indexOffset));
+            }
+            bundle.entries.put(path, new Entry(path, hash, offset, asset, false));
+            for (int slash = path.indexOf('/'); slash > -1; slash = path.indexOf('/', slash + 1)) {
+                bundle.directories.add(path.substring(0, slash));
+            }
+        }
+        Entry rootIndex = bundle.entries.get(INDEX_FILE);
+        if (rootIndex != null) {
+            bundle.indexTemplate = new Entry(rootIndex.path, rootIndex.hash, rootIndex.offset, rootIndex.asset, true);
+        }
+        LOG.info("Mapped bundle {} with {} files", file, count);
+        return bundle;
+    }
+
+    private StaticAsset asset(String path, String contentType, String eTag, long offset, long length,
+            long limit) throws IOException {
+        if (offset < HEADER_SIZE || length < 0 || offset + length > limit) {
+            throw new IOException("Entry " + path + " is outside of the bundle");
+        }
+        ByteBuffer slice = buffer.duplicate();
+        slice.position((int) offset);
+        slice.limit((int) (offset + length));
+        return new StaticAsset(path, length, lastModified, contentType, eTag, null,
+                StaticAsset.bufferSource(slice.slice()));
+    }
+
+    private static Map<String, byte[]> variantsOf(Path path, byte[] content, String contentType) throws IOException {
+        Map<String, byte[]> variants = new LinkedHashMap<>();
+        long lastModified = Files.getLastModifiedTime(path).toMillis();
+        for (String encoding : ENCODINGS) {
+            Path precompressed = path.resolveSibling(path.getFileName() + ("br".equals(encoding) ? ".br" : ".gz"));
+            if (Files.isRegularFile(precompressed)
+                    && Files.getLastModifiedTime(precompressed).toMillis() >= lastModified) {
+                variants.put(encoding, Files.readAllBytes(precompressed));
+            }
+        }
+        if (!variants.containsKey("gzip") && content.length >= WebApp.MIN_COMPRESS_SIZE
+                && WebApp.isCompressible(contentType)) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream(content.length / 3);
+            try (GZIPOutputStream gzip = new GZIPOutputStream(output)) {
+                gzip.write(content);
+            }
+            if (output.size() < content.length) {
+                variants.put("gzip", output.toByteArray());
+            }
+        }
+        return variants;
+    }
+
+    /**
+     * @param name The name of a file
+     * @return the content type of the file, guessed from its extension when
+     *         packing, outside of a request
+     */
+    static String contentTypeOf(String name) {
+        String contentType = CONTENT_TYPES.get(name.substring(name.lastIndexOf('.') + 1).toLowerCase());
+        if (contentType == null) {
+            contentType = java.net.URLConnection.guessContentTypeFromName(name);
+        }
+        return contentType == null ? "application/octet-stream" : contentType;
+    }
+
+    /**
+     * The current mapping of a bundle file.
+     */
+    private static class Holder {
+        private volatile WebAppBundle bundle;
+        private volatile long checkedAt;
+
+        WebAppBundle get(File file, UnaryOperator<String> contentTypes) {
+            long now = System.currentTimeMillis();
+            if (now - checkedAt < CHECK_INTERVAL) {
+                return bundle;
+            }
+            synchronized (this) {
+                if (now - checkedAt < CHECK_INTERVAL) {
+                    return bundle;
+                }
+                long lastModified = file.lastModified();
+                long length = file.length();
+                WebAppBundle current = bundle;
+                if (lastModified == 0) {
+                    bundle = null;
+                } else if (current == null || current.lastModified != lastModified || current.length != length) {
+                    try {
+                        bundle = open(file, length, lastModified, contentTypes);
+                    } catch (IOException e) {
+                        LOG.warn("Cannot map bundle {}", file, e);
+                        bundle = null;
+                    }
+                }
+                checkedAt = now;
+                return bundle;
+            }
+        }
+    }
+}
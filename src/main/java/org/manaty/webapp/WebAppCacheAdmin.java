@@ -0,0 +1,302 @@
+/*
+ * (C) Copyright 2018-2019 Manaty SARL (https://manaty.net) and contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Affero General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. This program is
+ * not suitable for any direct or indirect application in MILITARY industry See the GNU Affero
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.manaty.webapp;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.meveo.admin.exception.BusinessException;
+import org.meveo.commons.utils.ParamBean;
+import org.meveo.commons.utils.ParamBeanFactory;
+import org.meveo.service.script.Script;
+
+/**
+ * Inspects and controls the caches of {@link WebApp}. The {@code action}
+ * is one of:
+ * <ul>
+ * <li>{@code stats}: sizes, limits and hit ratios of the caches, and for each
+ * application its entries and largest assets</li>
+ * <li>{@code resize}: changes the limits of the caches until the next
+ * recompilation of {@link WebApp}, the given limits are also saved in the
+ * configuration when {@code persist} is set</li>
+ * <li>{@code purge}: drops the cached state of an application, or of the paths
+ * starting with {@code pathPrefix}, see {@link WebApp#purge(String)}</li>
+ * </ul>
+ */
+public class WebAppCacheAdmin extends Script {
+
+    private static final int DEFAULT_TOP = 10;
+
+    private ParamBeanFactory paramBeanFactory = getCDIBean(ParamBeanFactory.class);
+    private ParamBean config = paramBeanFactory.getInstance();
+
+    private String action = "stats";
+    private String appCode;
+    private String pathPrefix;
+    private int top = DEFAULT_TOP;
+    private Long maxBytes;
+    private Integer maxEntries;
+    private Long maxEntryBytes;
+    private Long offHeapMaxBytes;
+    private Long offHeapMaxEntryBytes;
+    private Integer lookupMaxEntries;
+    private Long lookupTtl;
+    private Long lookupNegativeTtl;
+    private Integer pagesMaxEntries;
+    private Long pagesMaxAge;
+    private boolean persist;
+    private Object result;
+
+    public Object getResult() {
+        return result;
+    }
+
+    /**
+     * @param action {@code stats}, {@code resize} or {@code purge}
+     */
+    public void setAction(String action) {
+        this.action = action;
+    }
+
+    /**
+     * @param appCode The application to report or purge, all the applications
+     *                are reported when not set
+     */
+    public void setAppCode(String appCode) {
+        this.appCode = appCode;
+    }
+
+    /**
+     * @param pathPrefix The beginning of the requested paths to purge, like
+     *                   {@code /assets}
+     */
+    public void setPathPrefix(String pathPrefix) {
+        this.pathPrefix = pathPrefix;
+    }
+
+    /**
+     * @param top The number of largest assets reported for each application
+     */
+    public void setTop(int top) {
+        this.top = top;
+    }
+
+    public void setMaxBytes(Long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public void setMaxEntries(Integer maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    public void setMaxEntryBytes(Long maxEntryBytes) {
+        this.maxEntryBytes = maxEntryBytes;
+    }
+
+    public void setOffHeapMaxBytes(Long offHeapMaxBytes) {
+        this.offHeapMaxBytes = offHeapMaxBytes;
+    }
+
+    public void setOffHeapMaxEntryBytes(Long offHeapMaxEntryBytes) {
+        this.offHeapMaxEntryBytes = offHeapMaxEntryBytes;
+    }
+
+    public void setLookupMaxEntries(Integer lookupMaxEntries) {
+        this.lookupMaxEntries = lookupMaxEntries;
+    }
+
+    public void setLookupTtl(Long lookupTtl) {
+        this.lookupTtl = lookupTtl;
+    }
+
+    public void setLookupNegativeTtl(Long lookupNegativeTtl) {
+        this.lookupNegativeTtl = lookupNegativeTtl;
+    }
+
+    public void setPagesMaxEntries(Integer pagesMaxEntries) {
+        this.pagesMaxEntries = pagesMaxEntries;
+    }
+
+    public void setPagesMaxAge(Long pagesMaxAge) {
+        this.pagesMaxAge = pagesMaxAge;
+    }
+
+    /**
+     * @param persist true to save the new limits in the configuration file
+     */
+    public void setPersist(boolean persist) {
+        this.persist = persist;
+    }
+
+    @Override
+    public void execute(Map<String, Object> parameters) throws BusinessException {
+        switch (action == null ? "" : action) {
+        case "stats":
+            result = stats();
+            break;
+        case "resize":
+            resize();
+            result = stats();
+            break;
+        case "purge":
+            if (appCode == null || appCode.isEmpty()) {
+                throw new BusinessException("appCode is required to purge");
+            }
+            WebApp webApp = new WebApp();
+            webApp.setAppCode(appCode);
+            try {
+                result = "Purged " + appCode + ", deleted " + webApp.purge(pathPrefix) + " generated index files";
+            } catch (IllegalArgumentException e) {
+                throw new BusinessException(e.getMessage());
+            }
+            break;
+        default:
+            throw new BusinessException("Unknown action " + action + ", expected stats, resize or purge");
+        }
+    }
+
+    private Map<String, Object> stats() {
+        AssetCache assets = WebApp.getAssetCache();
+        LookupCache lookups = WebApp.getLookupCache();
+        PageCache pages = WebApp.getPageCache();
+        IndexCache indexes = WebApp.getIndexCache();
+        WebAppMetrics metrics = WebApp.getMetrics();
+
+        Map<String, Object> stats = new LinkedHashMap<>();
+        Map<String, Object> assetStats = new LinkedHashMap<>();
+        assetStats.put("hitRatio", metrics.getAssetCacheHitRatio());
+        assetStats.put("entries", assets.size());
+        assetStats.put("bytes", assets.getCurrentBytes());
+        assetStats.put("maxEntries", assets.getMaxEntries());
+        assetStats.put("maxBytes", assets.getMaxBytes());
+        assetStats.put("maxEntryBytes", assets.getMaxEntryBytes());
+        assetStats.put("evictions", assets.getEvictions());
+        assetStats.put("offHeapEntries", assets.getOffHeapSize());
+        assetStats.put("offHeapBytes", assets.getOffHeapBytes());
+        assetStats.put("offHeapMaxBytes", assets.getOffHeapMaxBytes());
+        assetStats.put("offHeapMaxEntryBytes", assets.getOffHeapMaxEntryBytes());
+        assetStats.put("offHeapEvictions", assets.getOffHeapEvictions());
+        stats.put("assetCache", assetStats);
+
+        Map<String, Object> lookupStats = new LinkedHashMap<>();
+        lookupStats.put("hitRatio", metrics.getLookupCacheHitRatio());
+        lookupStats.put("maxEntries", lookups.getMaxEntries());
+        lookupStats.put("ttl", lookups.getTtl());
+        lookupStats.put("negativeTtl", lookups.getNegativeTtl());
+        stats.put("lookupCache", lookupStats);
+
+        Map<String, Object> pageStats = new LinkedHashMap<>();
+        pageStats.put("hitRatio", metrics.getPageCacheHitRatio());
+        pageStats.put("entries", pages.size());
+        pageStats.put("maxEntries", pages.getMaxEntries());
+        pageStats.put("maxAge", pages.getMaxAge());
+        pageStats.put("invalidations", pages.getInvalidations());
+        stats.put("pageCache", pageStats);
+
+        Map<String, Object> indexStats = new LinkedHashMap<>();
+        indexStats.put("entries", indexes.size());
+        stats.put("indexCache", indexStats);
+        stats.put("importMaps", WebApp.getImportMaps().size());
+
+        Map<String, Object> applications = new TreeMap<>();
+        for (WebAppContext context : WebApp.getContexts().getAll()) {
+            String code = context.getAppCode();
+            if (appCode != null && !appCode.isEmpty() && !appCode.equals(code)) {
+                continue;
+            }
+            String appRoot = context.getAppRootPath();
+            String gitRoot = context.getGitDirectory().getAbsolutePath();
+            List<AssetCache.Usage> usages = assets.list(
+                    path -> LookupCache.isUnder(path, appRoot) || LookupCache.isUnder(path, gitRoot));
+            long heapBytes = 0;
+            long offHeapBytes = 0;
+            List<Map<String, Object>> largest = new ArrayList<>();
+            for (AssetCache.Usage usage : usages) {
+                if (usage.isOffHeap()) {
+                    offHeapBytes += usage.getBytes();
+                } else {
+                    heapBytes += usage.getBytes();
+                }
+                if (largest.size() < top) {
+                    Map<String, Object> entry = new LinkedHashMap<>();
+                    entry.put("path", usage.getPath());
+                    entry.put("bytes", usage.getBytes());
+                    entry.put("offHeap", usage.isOffHeap());
+                    largest.add(entry);
+                }
+            }
+            Map<String, Object> application = new LinkedHashMap<>();
+            application.put("lookupEntries", lookups.size(code));
+            application.put("lookupHitRatio", lookups.getHitRatio(code));
+            application.put("pages", pages.size(code));
+            application.put("indexes", indexes.size(code));
+            application.put("assets", usages.size());
+            application.put("assetBytes", heapBytes);
+            application.put("assetOffHeapBytes", offHeapBytes);
+            application.put("largestAssets", largest);
+            applications.put(code, application);
+        }
+        stats.put("applications", applications);
+        stats.put("requests", metrics.getOutcomes());
+        return stats;
+    }
+
+    private void resize() throws BusinessException {
+        AssetCache assets = WebApp.getAssetCache();
+        LookupCache lookups = WebApp.getLookupCache();
+        PageCache pages = WebApp.getPageCache();
+        // load the configured limits first so that they do not override the new ones later
+        WebApp.configureCaches(config);
+        assets.configure(set("webapp.cache.maxBytes", maxBytes, assets.getMaxBytes()),
+                set("webapp.cache.maxEntries", maxEntries, assets.getMaxEntries()),
+                set("webapp.cache.maxEntryBytes", maxEntryBytes, assets.getMaxEntryBytes()));
+        assets.configureOffHeap(set("webapp.cache.offHeap.maxBytes", offHeapMaxBytes, assets.getOffHeapMaxBytes()),
+                set("webapp.cache.offHeap.maxEntryBytes", offHeapMaxEntryBytes, assets.getOffHeapMaxEntryBytes()));
+        lookups.configure(set("webapp.lookup.ttl", lookupTtl, lookups.getTtl()),
+                set("webapp.lookup.negativeTtl", lookupNegativeTtl, lookups.getNegativeTtl()),
+                set("webapp.lookup.maxEntries", lookupMaxEntries, lookups.getMaxEntries()));
+        pages.configure(set("webapp.pages.maxAge", pagesMaxAge, pages.getMaxAge()),
+                set("webapp.pages.maxEntries", pagesMaxEntries, pages.getMaxEntries()));
+        if (persist && !config.saveProperties()) {
+            throw new BusinessException("Failed to save the cache limits");
+        }
+    }
+
+    /**
+     * Validates a limit, and sets it in the configuration when it is persisted.
+     *
+     * @return the new limit, or the current one if it is not changed
+     */
+    private long set(String key, Long value, long current) throws BusinessException {
+        if (value == null) {
+            return current;
+        }
+        if (value < 0) {
+            throw new BusinessException(key + " cannot be negative");
+        }
+        if (persist) {
+            config.setProperty(key, String.valueOf(value));
+        }
+        return value;
+    }
+
+    private int set(String key, Integer value, int current) throws BusinessException {
+        return (int) set(key, value == null ? null : value.longValue(), current);
+    }
+}
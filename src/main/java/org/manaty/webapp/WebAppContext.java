@@ -0,0 +1,168 @@
+/*
+ * (C) Copyright 2018-2019 Manaty SARL (https://manaty.net) and contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Affero General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. This program is
+ * not suitable for any direct or indirect application in MILITARY industry See the GNU Affero
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.manaty.webapp;
+
+import java.io.File;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+import org.meveo.model.customEntities.WebApplication;
+import org.meveo.model.storage.Repository;
+
+/**
+ * Directories, repository and settings of a web application, resolved once and
+ * shared by the requests of that application.
+ */
+class WebAppContext {
+
+    static final long DEFAULT_APPLICATION_TTL = 60000L;
+
+    private final String appCode;
+    private final String configKey;
+    private final String webappPath;
+    private final String appRootPath;
+    private final File gitDirectory;
+    private final Repository repository;
+    private final DigestIndex digestIndex;
+    private final long streamThreshold;
+    private final boolean streamPages;
+    private final long applicationTtl;
+    private final GitTreeSource gitSource;
+    private final File bundleFile;
+    private volatile boolean watched;
+    private volatile WebApplication webApplication;
+    private volatile long webApplicationLoadedAt;
+
+    WebAppContext(String appCode, String configKey, String webappPath, String appRootPath, File gitDirectory,
+            Repository repository, DigestIndex digestIndex, long streamThreshold, boolean streamPages,
+            long applicationTtl, GitTreeSource gitSource) {
+        this.appCode = appCode;
+        this.configKey = configKey;
+        this.webappPath = webappPath;
+        this.appRootPath = appRootPath;
+        this.gitDirectory = gitDirectory;
+        this.repository = repository;
+        this.digestIndex = digestIndex;
+        this.streamThreshold = streamThreshold;
+        this.streamPages = streamPages;
+        this.applicationTtl = applicationTtl;
+        this.gitSource = gitSource;
+        this.bundleFile = new File(appRootPath + WebAppBundle.EXTENSION);
+    }
+
+    String getAppCode() {
+        return appCode;
+    }
+
+    String getConfigKey() {
+        return configKey;
+    }
+
+    /**
+     * @return the directory containing the web applications of the provider
+     */
+    String getWebappPath() {
+        return webappPath;
+    }
+
+    /**
+     * @return the directory of the application under the webapp directory
+     */
+    String getAppRootPath() {
+        return appRootPath;
+    }
+
+    /**
+     * @return the git working tree of the application
+     */
+    File getGitDirectory() {
+        return gitDirectory;
+    }
+
+    Repository getRepository() {
+        return repository;
+    }
+
+    DigestIndex getDigestIndex() {
+        return digestIndex;
+    }
+
+    long getStreamThreshold() {
+        return streamThreshold;
+    }
+
+    /**
+     * @return true if the pages built from the WebApplication instance are
+     *         written to the response as they are rendered instead of being
+     *         cached
+     */
+    boolean isStreamPages() {
+        return streamPages;
+    }
+
+    /**
+     * @return the pinned tree the files of the git repository are served from,
+     *         or null if they are served from the working tree
+     */
+    GitTreeSource getGitSource() {
+        return gitSource;
+    }
+
+    /**
+     * @param contentTypes Resolves the content type of a file from its name when
+     *                     the bundle is mapped
+     * @return the packed bundle of the application, or null if it has none
+     */
+    WebAppBundle getBundle(UnaryOperator<String> contentTypes) {
+        return WebAppBundle.find(bundleFile, contentTypes);
+    }
+
+    File getBundleFile() {
+        return bundleFile;
+    }
+
+    /**
+     * @return true if the directories of the application are watched for
+     *         changes, in which case cached entries are not checked against the
+     *         files on each request
+     */
+    boolean isWatched() {
+        return watched;
+    }
+
+    void setWatched(boolean watched) {
+        this.watched = watched;
+    }
+
+    /**
+     * The entity is kept for the configured time, so that updates of the
+     * instance made without {@link WebApp#invalidatePages(String, String)} are
+     * eventually seen.
+     *
+     * @param loader Loads the WebApplication entity when it is not known yet or
+     *               has expired
+     * @return the WebApplication entity of the application
+     */
+    WebApplication getWebApplication(Supplier<WebApplication> loader) {
+        WebApplication result = webApplication;
+        if (result == null || System.currentTimeMillis() - webApplicationLoadedAt > applicationTtl) {
+            result = loader.get();
+            webApplicationLoadedAt = System.currentTimeMillis();
+            webApplication = result;
+        }
+        return result;
+    }
+}
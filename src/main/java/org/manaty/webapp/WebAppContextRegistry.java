@@ -0,0 +1,70 @@
+/*
+ * (C) Copyright 2018-2019 Manaty SARL (https://manaty.net) and contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Affero General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. This program is
+ * not suitable for any direct or indirect application in MILITARY industry See the GNU Affero
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.manaty.webapp;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+
+/**
+ * Thread-safe registry of the {@link WebAppContext} of each application.
+ */
+class WebAppContextRegistry {
+
+    private final Map<String, WebAppContext> contexts = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the context of the application, creating it if it does not exist or
+     * if it was built for another configuration.
+     *
+     * @param appCode   The code of the web application
+     * @param configKey The current configuration of the provider directories
+     * @param factory   Creates the context from the app code and configuration
+     * @return The context of the application
+     */
+    WebAppContext get(String appCode, String configKey, BiFunction<String, String, WebAppContext> factory) {
+        WebAppContext context = contexts.get(appCode);
+        if (context != null && context.getConfigKey().equals(configKey)) {
+            return context;
+        }
+        return contexts.compute(appCode, (key, current) -> current != null && current.getConfigKey().equals(configKey)
+                ? current
+                : factory.apply(key, configKey));
+    }
+
+    /**
+     * @param appCode The code of the web application
+     * @return the context of the application, or null if it was not created yet
+     */
+    WebAppContext find(String appCode) {
+        return contexts.get(appCode);
+    }
+
+    /**
+     * Drops the context of the application, it is resolved again on the next
+     * request.
+     *
+     * @param appCode The code of the web application
+     */
+    void invalidate(String appCode) {
+        contexts.remove(appCode);
+    }
+
+    Collection<WebAppContext> getAll() {
+        return contexts.values();
+    }
+}
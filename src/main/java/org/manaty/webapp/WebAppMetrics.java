@@ -0,0 +1,256 @@
+/*
+ * (C) Copyright 2018-2019 Manaty SARL (https://manaty.net) and contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Affero General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. This program is
+ * not suitable for any direct or indirect application in MILITARY industry See the GNU Affero
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.manaty.webapp;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Latency, outcome and volume of the requests served by {@link WebApp}, per
+ * application. Latencies are recorded in power of two buckets of microseconds
+ * with {@link LongAdder}s, so recording does not contend between requests.
+ */
+class WebAppMetrics implements WebAppMetricsMXBean {
+
+    static final String OBJECT_NAME = "org.manaty.webapp:type=WebAppMetrics";
+
+    private static final Logger LOG = LoggerFactory.getLogger(WebAppMetrics.class);
+    private static final int BUCKETS = 32;
+
+    /**
+     * The branch a request was served from, or how it ended.
+     */
+    enum Outcome {
+        /** A file of the packed bundle of the application */
+        BUNDLE,
+        /** A file of the webapp directory */
+        WEBAPP_FILE,
+        /** A file of the git working tree */
+        GIT_FILE,
+        /** A blob of the pinned git ref */
+        GIT_OBJECT,
+        /** The index.html rendered from the template of the application */
+        INDEX,
+        /** The import map published for the application */
+        IMPORT_MAP,
+        /** A page built from the WebApplication instance */
+        PAGE,
+        /** A conditional request answered with 304 */
+        NOT_MODIFIED,
+        /** A file that disappeared once resolved */
+        NOT_FOUND,
+        /** Any other status from 400 */
+        ERROR
+    }
+
+    private final Map<String, Map<Outcome, Stats>> applications = new ConcurrentHashMap<>();
+
+    /**
+     * Registers the metrics in the platform MBean server, replacing the ones of a
+     * previous version of the script.
+     *
+     * @param metrics The metrics to expose
+     */
+    static void register(WebAppMetrics metrics) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(metrics, name);
+        } catch (JMException | RuntimeException e) {
+            LOG.warn("Cannot register {}", OBJECT_NAME, e);
+        }
+    }
+
+    /**
+     * @param appCode The code of the web application
+     * @param outcome How the request was served
+     * @param bytes   The number of bytes written to the response
+     * @param nanos   The time spent serving the request
+     */
+    void record(String appCode, Outcome outcome, long bytes, long nanos) {
+        Map<Outcome, Stats> outcomes = applications.get(appCode);
+        if (outcomes == null) {
+            outcomes = applications.computeIfAbsent(appCode, key -> {
+                Map<Outcome, Stats> created = new EnumMap<>(Outcome.class);
+                for (Outcome value : Outcome.values()) {
+                    created.put(value, new Stats());
+                }
+                return created;
+            });
+        }
+        outcomes.get(outcome).record(bytes, nanos);
+    }
+
+    @Override
+    public long getRequestCount() {
+        long count = 0;
+        for (Map<Outcome, Stats> outcomes : applications.values()) {
+            for (Stats stats : outcomes.values()) {
+                count += stats.count.sum();
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public long getBytesServed() {
+        long bytes = 0;
+        for (Map<Outcome, Stats> outcomes : applications.values()) {
+            for (Stats stats : outcomes.values()) {
+                bytes += stats.bytes.sum();
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    public double getAssetCacheHitRatio() {
+        return ratio(WebApp.getAssetCache().getHits(), WebApp.getAssetCache().getMisses());
+    }
+
+    @Override
+    public double getLookupCacheHitRatio() {
+        return ratio(WebApp.getLookupCache().getHits(), WebApp.getLookupCache().getMisses());
+    }
+
+    @Override
+    public double getPageCacheHitRatio() {
+        return ratio(WebApp.getPageCache().getHits(), WebApp.getPageCache().getMisses());
+    }
+
+    @Override
+    public long getAssetCacheHeapBytes() {
+        return WebApp.getAssetCache().getCurrentBytes();
+    }
+
+    @Override
+    public long getAssetCacheOffHeapBytes() {
+        return WebApp.getAssetCache().getOffHeapBytes();
+    }
+
+    @Override
+    public String[] getOutcomes() {
+        List<String> lines = new ArrayList<>();
+        for (String appCode : new java.util.TreeSet<>(applications.keySet())) {
+            for (Map.Entry<Outcome, Stats> entry : applications.get(appCode).entrySet()) {
+                Stats stats = entry.getValue();
+                long count = stats.count.sum();
+                if (count == 0) {
+                    continue;
+                }
+                lines.add(String.format(
+                        "%s %s count=%d bytes=%d mean=%.3fms p50=%.3fms p95=%.3fms p99=%.3fms max=%.3fms", appCode,
+                        entry.getKey(), count, stats.bytes.sum(), stats.nanos.sum() / 1e6 / count,
+                        stats.percentile(0.50) / 1e3, stats.percentile(0.95) / 1e3, stats.percentile(0.99) / 1e3,
+                        stats.max.get() / 1e6));
+            }
+        }
+        return lines.toArray(new String[0]);
+    }
+
+    @Override
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        for (String line : getOutcomes()) {
+            report.append(line).append('\n');
+        }
+        report.append(String.format("requests=%d bytes=%d%n", getRequestCount(), getBytesServed()));
+        report.append(String.format("assetCache hitRatio=%.3f heapBytes=%d offHeapBytes=%d%n",
+                getAssetCacheHitRatio(), getAssetCacheHeapBytes(), getAssetCacheOffHeapBytes()));
+        report.append(String.format("lookupCache hitRatio=%.3f%n", getLookupCacheHitRatio()));
+        report.append(String.format("pageCache hitRatio=%.3f%n", getPageCacheHitRatio()));
+        return report.toString();
+    }
+
+    @Override
+    public void reset() {
+        applications.clear();
+    }
+
+    private static double ratio(long hits, long misses) {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * Counters and latency histogram of one outcome of an application.
+     */
+    private static class Stats {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+        private final AtomicLong max = new AtomicLong();
+
+        private Stats() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        private void record(long bytes, long nanos) {
+            count.increment();
+            this.bytes.add(bytes);
+            this.nanos.add(nanos);
+            // bucket i holds the latencies below 2^i microseconds
+            int bucket = 64 - Long.numberOfLeadingZeros(nanos / 1000);
+            buckets[Math.min(bucket, BUCKETS - 1)].increment();
+            long current = max.get();
+            while (nanos > current && !max.compareAndSet(current, nanos)) {
+                current = max.get();
+            }
+        }
+
+        /**
+         * @return the upper bound in microseconds of the bucket holding the given
+         *         percentile, capped by the maximum latency
+         */
+        private long percentile(double percentile) {
+            long maxMicros = (max.get() + 999) / 1000;
+            long total = 0;
+            long[] counts = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets[i].sum();
+                total += counts[i];
+            }
+            long target = (long) Math.ceil(percentile * total);
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                cumulative += counts[i];
+                if (cumulative >= target && counts[i] > 0) {
+                    return Math.min(1L << i, maxMicros);
+                }
+            }
+            return maxMicros;
+        }
+    }
+}
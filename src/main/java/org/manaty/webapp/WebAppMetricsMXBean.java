@@ -0,0 +1,59 @@
+/*
+ * (C) Copyright 2018-2019 Manaty SARL (https://manaty.net) and contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Affero General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. This program is
+ * not suitable for any direct or indirect application in MILITARY industry See the GNU Affero
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.manaty.webapp;
+
+/**
+ * JMX view of the requests served by {@link WebApp}, registered as
+ * {@code org.manaty.webapp:type=WebAppMetrics}.
+ */
+public interface WebAppMetricsMXBean {
+
+    /**
+     * @return the number of requests served since the last reset
+     */
+    long getRequestCount();
+
+    /**
+     * @return the number of bytes written to the responses since the last reset
+     */
+    long getBytesServed();
+
+    double getAssetCacheHitRatio();
+
+    double getLookupCacheHitRatio();
+
+    double getPageCacheHitRatio();
+
+    long getAssetCacheHeapBytes();
+
+    long getAssetCacheOffHeapBytes();
+
+    /**
+     * @return one line per application and outcome with the request count,
+     *         bytes and latency percentiles
+     */
+    String[] getOutcomes();
+
+    /**
+     * @return the outcomes and cache statistics as a text report
+     */
+    String report();
+
+    /**
+     * Clears the request counters and latency histograms.
+     */
+    void reset();
+}
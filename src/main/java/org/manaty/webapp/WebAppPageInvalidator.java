@@ -0,0 +1,58 @@
+/*
+ * (C) Copyright 2018-2019 Manaty SARL (https://manaty.net) and contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Affero General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. This program is
+ * not suitable for any direct or indirect application in MILITARY industry See the GNU Affero
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.manaty.webapp;
+
+import java.util.Map;
+
+import org.meveo.admin.exception.BusinessException;
+import org.meveo.model.customEntities.CustomEntityInstance;
+import org.meveo.service.script.Script;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Drops the pages served by {@link WebApp} that were built from the entity of
+ * the context. It must be registered as a script notification on
+ * {@code org.meveo.model.customEntities.CustomEntityInstance} for the
+ * {@code UPDATED} and {@code REMOVED} events, filtered on the WebApplication,
+ * ApplicationWebPage and CSSStyleSheet templates. Without it, built pages are
+ * only refreshed when they expire after {@code webapp.pages.maxAge}; the
+ * {@code invalidations} reported by {@link WebAppCacheAdmin} show whether it is
+ * called, and a warning is logged when a page expires before any invalidation
+ * was received.
+ */
+public class WebAppPageInvalidator extends Script {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WebAppPageInvalidator.class);
+
+    @Override
+    public void execute(Map<String, Object> parameters) throws BusinessException {
+        Object entity = parameters.get(CONTEXT_ENTITY);
+        if (entity instanceof CustomEntityInstance) {
+            CustomEntityInstance instance = (CustomEntityInstance) entity;
+            LOG.debug("Invalidating pages built from {} {}", instance.getCetCode(), instance.getCode());
+            WebApp.invalidatePages(instance.getCetCode(), instance.getCode());
+        } else if (entity instanceof Map) {
+            Map<?, ?> values = (Map<?, ?>) entity;
+            Object cetCode = values.get("cetCode");
+            Object code = values.get("code");
+            if (cetCode != null && code != null) {
+                LOG.debug("Invalidating pages built from {} {}", cetCode, code);
+                WebApp.invalidatePages(cetCode.toString(), code.toString());
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * (C) Copyright 2018-2019 Manaty SARL (https://manaty.net) and contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Affero General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. This program is
+ * not suitable for any direct or indirect application in MILITARY industry See the GNU Affero
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.manaty.webapp;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Background threads of {@link WebApp}, registered in the platform MBean
+ * server. Static state of the script lives in its classloader, which is
+ * replaced on each recompilation; registering a service stops the one of the
+ * same name started by a previous version of the script, so that its threads
+ * and classloader do not leak.
+ */
+class WebAppService implements WebAppServiceMXBean {
+
+    static final String OBJECT_NAME = "org.manaty.webapp:type=WebAppService,name=";
+
+    private static final Logger LOG = LoggerFactory.getLogger(WebAppService.class);
+
+    private final String name;
+    private final Runnable stop;
+
+    private WebAppService(String name, Runnable stop) {
+        this.name = name;
+        this.stop = stop;
+    }
+
+    /**
+     * Stops the service of the same name registered by a previous version of
+     * the script, and registers the new one in its place.
+     *
+     * @param name The name of the service
+     * @param stop Stops the threads of the service
+     */
+    static void register(String name, Runnable stop) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(OBJECT_NAME + name);
+            if (server.isRegistered(objectName)) {
+                try {
+                    server.invoke(objectName, "stop", null, null);
+                } catch (JMException | RuntimeException e) {
+                    LOG.warn("Cannot stop the previous {}", objectName, e);
+                }
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(new WebAppService(name, stop), objectName);
+        } catch (JMException | RuntimeException e) {
+            LOG.warn("Cannot register {}{}", OBJECT_NAME, name, e);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public void stop() {
+        stop.run();
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * (C) Copyright 2018-2019 Manaty SARL (https://manaty.net) and contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Affero General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. This program is
+ * not suitable for any direct or indirect application in MILITARY industry See the GNU Affero
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.manaty.webapp;
+
+/**
+ * JMX handle of a background thread of {@link WebApp}, registered as
+ * {@code org.manaty.webapp:type=WebAppService,name=<name>}. The platform MBean
+ * server outlives the classloader of the script, so a new version of the script
+ * stops the threads of the previous one through it.
+ */
+public interface WebAppServiceMXBean {
+
+    /**
+     * @return the name the service is registered with
+     */
+    String getName();
+
+    /**
+     * Stops the threads of the service. Work already submitted is finished,
+     * nothing is accepted afterwards.
+     */
+    void stop();
+}
@@ -0,0 +1,272 @@
+/*
+ * (C) Copyright 2018-2019 Manaty SARL (https://manaty.net) and contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Affero General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. This program is
+ * not suitable for any direct or indirect application in MILITARY industry See the GNU Affero
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.manaty.webapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Background preloading of the caches of an application, so that the first
+ * users after a generation or a deploy do not pay for cold reads. The paths of
+ * the files and directories of the application are resolved as they are when
+ * requested, the resolved files are loaded with their ETag and compressed
+ * variants in parallel, and its index is rendered. Progress is logged at debug
+ * level, the final summary is logged and kept until the next warm-up of the
+ * application.
+ */
+class WebAppWarmUp {
+
+    /**
+     * Resolves a requested path in the directories of the application.
+     */
+    @FunctionalInterface
+    interface Resolver {
+        LookupCache.Entry resolve(String remainingPath) throws IOException;
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(WebAppWarmUp.class);
+    private static final Map<String, WebAppWarmUp> RUNS = new ConcurrentHashMap<>();
+    private static final long PROGRESS_INTERVAL = 2000L;
+    private static final String INDEX_FILE = "index.html";
+    private static final String PATH_CHARACTERS = "-._~!$&'()*,;=:@/";
+
+    static {
+        WebAppService.register("warm-up", WebAppWarmUp::stopAll);
+    }
+
+    private final String appCode;
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong variants = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final long startedAt = System.currentTimeMillis();
+    private volatile long total;
+    private volatile long finishedAt;
+    private volatile boolean indexRendered;
+    private volatile Thread thread;
+
+    private WebAppWarmUp(String appCode) {
+        this.appCode = appCode;
+    }
+
+    /**
+     * Starts warming up the caches of an application, unless a warm-up of that
+     * application is already running.
+     *
+     * @param context      The context of the application
+     * @param parallelism  The number of threads loading the files
+     * @param baseHref     The base URL the index is rendered for
+     * @param renderer     Renders the index template
+     * @param resolver     Resolves the paths as {@link WebApp} does
+     * @param contentTypes Resolves the content type of a file from its name,
+     *                     null to only resolve the paths when it is not known
+     * @return The warm-up of the application
+     */
+    static WebAppWarmUp start(WebAppContext context, int parallelism, String baseHref, IndexCache.Renderer renderer,
+            Resolver resolver, UnaryOperator<String> contentTypes) {
+        return RUNS.compute(context.getAppCode(), (appCode, current) -> {
+            if (current != null && !current.isDone()) {
+                return current;
+            }
+            WebAppWarmUp warmUp = new WebAppWarmUp(appCode);
+            warmUp.thread = new Thread(() -> warmUp.run(context, Math.max(1, parallelism), baseHref, renderer,
+                    resolver, contentTypes), "webapp-warm-up-" + appCode);
+            warmUp.thread.setDaemon(true);
+            warmUp.thread.start();
+            return warmUp;
+        });
+    }
+
+    /**
+     * @param appCode The code of the web application
+     * @return the last warm-up of the application, or null if there was none
+     */
+    static WebAppWarmUp find(String appCode) {
+        return RUNS.get(appCode);
+    }
+
+    /**
+     * Interrupts the running warm-ups, their loading threads are stopped.
+     */
+    static void stopAll() {
+        for (WebAppWarmUp warmUp : RUNS.values()) {
+            Thread current = warmUp.thread;
+            if (current != null && !warmUp.isDone()) {
+                current.interrupt();
+            }
+        }
+    }
+
+    boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return done.await(timeout, unit);
+    }
+
+    boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    /**
+     * @return the progress of the warm-up, or its summary once it is done
+     */
+    String summary() {
+        long elapsed = (isDone() ? finishedAt : System.currentTimeMillis()) - startedAt;
+        return String.format("%s %s: %d paths, %d files, %d bytes, %d variants, index %s, %d failures in %d ms",
+                appCode, isDone() ? "warmed up" : "warming up", total, files.get(), bytes.get(), variants.get(),
+                indexRendered ? "rendered" : "not rendered", failures.get(), elapsed);
+    }
+
+    private void run(WebAppContext context, int parallelism, String baseHref, IndexCache.Renderer renderer,
+            Resolver resolver, UnaryOperator<String> contentTypes) {
+        AtomicLong threads = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "webapp-warm-up-" + appCode + "-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            Set<String> paths = new LinkedHashSet<>();
+            collect(new File(context.getAppRootPath()), paths);
+            if (context.getGitSource() == null) {
+                collect(context.getGitDirectory(), paths);
+            }
+            if (contentTypes == null) {
+                LOG.info("The MIME mapping is not known yet, only the paths of {} are resolved", appCode);
+            }
+            total = paths.size();
+            Set<String> loaded = ConcurrentHashMap.newKeySet();
+            for (String remainingPath : paths) {
+                executor.execute(() -> load(context, remainingPath, resolver, contentTypes, loaded));
+            }
+            executor.shutdown();
+            File indexTemplate = new File(context.getGitDirectory(), INDEX_FILE);
+            if (indexTemplate.isFile()) {
+                WebApp.getIndexCache().get(indexTemplate, baseHref, context.isWatched(), renderer);
+                indexRendered = true;
+            }
+            while (!executor.awaitTermination(PROGRESS_INTERVAL, TimeUnit.MILLISECONDS)) {
+                LOG.debug(summary());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Failed to warm up {}", appCode, e);
+            failures.incrementAndGet();
+        } finally {
+            executor.shutdownNow();
+            finishedAt = System.currentTimeMillis();
+            done.countDown();
+            LOG.info(summary());
+        }
+    }
+
+    private void load(WebAppContext context, String remainingPath, Resolver resolver,
+            UnaryOperator<String> contentTypes, Set<String> loaded) {
+        AssetCache assets = WebApp.getAssetCache();
+        try {
+            LookupCache.Entry lookup = resolver.resolve(remainingPath);
+            WebApp.getLookupCache().put(appCode, remainingPath, lookup);
+            File file = lookup.getFile();
+            // the index template is rendered once, a directory resolves to a file loaded on its own
+            if (file == null || lookup.isIndexTemplate() || contentTypes == null
+                    || !loaded.add(file.getAbsolutePath())) {
+                return;
+            }
+            StaticAsset asset;
+            if (file.length() > context.getStreamThreshold()) {
+                asset = assets.getLarge(file, cached -> contentTypes.apply(cached.getName()),
+                        context.getDigestIndex());
+                bytes.addAndGet(asset.getLength());
+            } else {
+                asset = assets.get(file, cached -> contentTypes.apply(cached.getName()), context.getDigestIndex());
+                if (asset.getLength() >= WebApp.MIN_COMPRESS_SIZE && WebApp.isCompressible(asset.getContentType())) {
+                    for (String encoding : new String[] { "br", "gzip" }) {
+                        if (assets.getVariant(asset, file, encoding) != null) {
+                            variants.incrementAndGet();
+                        }
+                    }
+                }
+                bytes.addAndGet(asset.getWeight());
+            }
+            files.incrementAndGet();
+        } catch (IOException | RuntimeException e) {
+            LOG.debug("Failed to warm up {}", remainingPath, e);
+            failures.incrementAndGet();
+        }
+    }
+
+    /**
+     * Collects the requested paths of the files and directories under a root,
+     * encoded as they are sent by browsers.
+     */
+    private static void collect(File root, Set<String> paths) throws IOException {
+        if (!root.isDirectory()) {
+            return;
+        }
+        Path rootPath = root.toPath();
+        Files.walkFileTree(rootPath, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (".git".equals(String.valueOf(dir.getFileName()))) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                paths.add(pathOf(rootPath, dir));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile()) {
+                    paths.add(pathOf(rootPath, file));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static String pathOf(Path root, Path path) {
+        String relative = "/" + root.relativize(path).toString().replace(File.separatorChar, '/');
+        StringBuilder encoded = new StringBuilder(relative.length());
+        for (byte b : relative.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xff);
+            if (c < 0x80 && (Character.isLetterOrDigit(c) || PATH_CHARACTERS.indexOf(c) >= 0)) {
+                encoded.append(c);
+            } else {
+                encoded.append(String.format("%%%02X", b & 0xff));
+            }
+        }
+        return encoded.toString();
+    }
+}
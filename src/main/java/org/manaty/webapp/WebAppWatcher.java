@@ -0,0 +1,252 @@
+/*
+ * (C) Copyright 2018-2019 Manaty SARL (https://manaty.net) and contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Affero General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. This program is
+ * not suitable for any direct or indirect application in MILITARY industry See the GNU Affero
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.manaty.webapp;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches the directories of the web applications and notifies the changed
+ * files to the listeners, so that caches are invalidated when a file changes
+ * instead of checking every file on each request. Directories are registered
+ * recursively, except {@code .git}. Events are coalesced until no change
+ * happened for {@link #QUIET_PERIOD} ms, so a git checkout results in a single
+ * notification per application.
+ */
+class WebAppWatcher {
+
+    /**
+     * Receives the changes of the files of an application.
+     */
+    @FunctionalInterface
+    interface Listener {
+        void onChange(String appCode, Set<Path> paths, boolean overflow);
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(WebAppWatcher.class);
+    private static final long QUIET_PERIOD = 200L;
+    private static final long MAX_DELAY = 2000L;
+    private static final int MAX_PATHS = 256;
+
+    private final Map<WatchKey, List<Registration>> registrations = new ConcurrentHashMap<>();
+    private final Set<String> watchedRoots = ConcurrentHashMap.newKeySet();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final Map<String, Set<Path>> pending = new HashMap<>();
+    private final Set<String> overflows = new HashSet<>();
+    private WatchService watchService;
+    private boolean closed;
+
+    void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Stops watching, the directories registered afterwards are not watched.
+     */
+    synchronized void close() {
+        closed = true;
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                LOG.warn("Cannot close the file watcher", e);
+            }
+        }
+        registrations.clear();
+        watchedRoots.clear();
+    }
+
+    /**
+     * Starts watching the given roots of an application. A root that does not
+     * exist yet is registered when it is created.
+     *
+     * @param appCode The code of the web application
+     * @param roots   The directories of the application
+     * @return true if the directories are watched
+     */
+    synchronized boolean watch(String appCode, Path... roots) {
+        if (closed) {
+            return false;
+        }
+        try {
+            if (watchService == null) {
+                watchService = FileSystems.getDefault().newWatchService();
+                Thread thread = new Thread(this::run, "webapp-watcher");
+                thread.setDaemon(true);
+                thread.start();
+            }
+            for (Path root : roots) {
+                if (!watchedRoots.add(appCode + "|" + root)) {
+                    continue;
+                }
+                // the parent tells when the root itself is created or deleted
+                Path parent = root.getParent();
+                if (parent != null && Files.isDirectory(parent)) {
+                    register(parent, new Registration(appCode, root, false));
+                }
+                if (Files.isDirectory(root)) {
+                    registerTree(appCode, root, root);
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            LOG.warn("Cannot watch the directories of {}, cached files will be checked on each request", appCode, e);
+            return false;
+        }
+    }
+
+    private void registerTree(String appCode, Path root, Path start) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (".git".equals(String.valueOf(dir.getFileName()))) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                register(dir, new Registration(appCode, root, true));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void register(Path dir, Registration registration) throws IOException {
+        WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        registrations.computeIfAbsent(key, k -> new CopyOnWriteArrayList<>()).add(registration);
+    }
+
+    private void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                WatchKey key = watchService.take();
+                long deadline = System.currentTimeMillis() + MAX_DELAY;
+                while (key != null) {
+                    process(key);
+                    if (System.currentTimeMillis() > deadline) {
+                        break;
+                    }
+                    key = watchService.poll(QUIET_PERIOD, TimeUnit.MILLISECONDS);
+                }
+                publish();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ClosedWatchServiceException e) {
+                return;
+            } catch (RuntimeException e) {
+                LOG.error("Failed to process file changes", e);
+            }
+        }
+    }
+
+    private void process(WatchKey key) {
+        Path dir = (Path) key.watchable();
+        List<Registration> keyRegistrations = registrations.getOrDefault(key, Collections.emptyList());
+        for (WatchEvent<?> event : key.pollEvents()) {
+            for (Registration registration : keyRegistrations) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    overflows.add(registration.appCode);
+                    continue;
+                }
+                Path child = dir.resolve((Path) event.context());
+                if (!registration.recursive) {
+                    // only the creation or deletion of the root matters in its parent
+                    if (child.equals(registration.root)) {
+                        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                            registerQuietly(registration.appCode, registration.root, child);
+                        }
+                        overflows.add(registration.appCode);
+                    }
+                    continue;
+                }
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(child)) {
+                    registerQuietly(registration.appCode, registration.root, child);
+                }
+                Set<Path> paths = pending.computeIfAbsent(registration.appCode, k -> new HashSet<>());
+                paths.add(child);
+                if (paths.size() > MAX_PATHS) {
+                    overflows.add(registration.appCode);
+                }
+            }
+        }
+        if (!key.reset()) {
+            registrations.remove(key);
+        }
+    }
+
+    private void registerQuietly(String appCode, Path root, Path dir) {
+        try {
+            synchronized (this) {
+                registerTree(appCode, root, dir);
+            }
+        } catch (IOException e) {
+            LOG.warn("Cannot watch {}", dir, e);
+            overflows.add(appCode);
+        }
+    }
+
+    private void publish() {
+        for (String appCode : overflows) {
+            pending.remove(appCode);
+            notifyListeners(appCode, Collections.emptySet(), true);
+        }
+        overflows.clear();
+        pending.forEach((appCode, paths) -> notifyListeners(appCode, paths, false));
+        pending.clear();
+    }
+
+    private void notifyListeners(String appCode, Set<Path> paths, boolean overflow) {
+        for (Listener listener : listeners) {
+            try {
+                listener.onChange(appCode, paths, overflow);
+            } catch (RuntimeException e) {
+                LOG.error("Failed to notify file changes of {}", appCode, e);
+            }
+        }
+    }
+
+    private static class Registration {
+        private final String appCode;
+        private final Path root;
+        private final boolean recursive;
+
+        private Registration(String appCode, Path root, boolean recursive) {
+            this.appCode = appCode;
+            this.root = root;
+            this.recursive = recursive;
+        }
+    }
+}
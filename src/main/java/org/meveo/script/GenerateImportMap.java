@@ -1,11 +1,42 @@
 package org.meveo.script;
 
 import java.io.File;
-import java.util.HashMap;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 
 import org.apache.commons.lang3.StringUtils;
+import org.manaty.webapp.WebApp;
 import org.meveo.admin.exception.BusinessException;
 import org.meveo.commons.utils.MeveoFileUtils;
 import org.meveo.model.persistence.JacksonUtil;
@@ -17,39 +48,646 @@ public class GenerateImportMap extends Script {
 
     private static Logger LOGGER = LoggerFactory.getLogger(GenerateImportMap.class);
 
+    private static final int DEFAULT_PARALLELISM = Math.min(8, Runtime.getRuntime().availableProcessors() * 2);
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final String PACKAGE_LOCK = "package-lock.json";
+    private static final String MANIFEST = ".importmap-manifest.json";
+
+    /**
+     * Import map generated from the installed packages of a directory, along
+     * with the packages whose package.json could not be read.
+     */
+    public static class ImportMap {
+        private final String json;
+        private final Map<String, String> failures;
+
+        ImportMap(String json, Map<String, String> failures) {
+            this.json = json;
+            this.failures = Collections.unmodifiableMap(failures);
+        }
+
+        /**
+         * @return the import map, as written in importmap.js
+         */
+        public String getJson() {
+            return json;
+        }
+
+        /**
+         * @return the error of each package that was left out of the import map,
+         *         by package path
+         */
+        public Map<String, String> getFailures() {
+            return failures;
+        }
+    }
+
+    /**
+     * Settings of the generation of an import map.
+     */
+    public static class Options {
+        private int parallelism = DEFAULT_PARALLELISM;
+        private boolean streaming = true;
+        private boolean incremental = true;
+        private boolean compact;
+        private String appCode;
+        private List<String> entryPoints = Collections.emptyList();
+
+        public int getParallelism() {
+            return parallelism;
+        }
+
+        /**
+         * @param parallelism The maximum number of package.json files read at once
+         */
+        public void setParallelism(int parallelism) {
+            this.parallelism = parallelism;
+        }
+
+        public boolean isStreaming() {
+            return streaming;
+        }
+
+        /**
+         * @param streaming true to pull only the fields used from the JSON files
+         *                  instead of reading them into maps
+         */
+        public void setStreaming(boolean streaming) {
+            this.streaming = streaming;
+        }
+
+        public boolean isIncremental() {
+            return incremental;
+        }
+
+        /**
+         * @param incremental true to reuse the packages recorded by the previous
+         *                    run in {@code .importmap-manifest.json}
+         */
+        public void setIncremental(boolean incremental) {
+            this.incremental = incremental;
+        }
+
+        public boolean isCompact() {
+            return compact;
+        }
+
+        /**
+         * @param compact true to write importmap.js without indentation
+         */
+        public void setCompact(boolean compact) {
+            this.compact = compact;
+        }
+
+        public String getAppCode() {
+            return appCode;
+        }
+
+        /**
+         * @param appCode The web application to publish the import map to, it is
+         *                then served compact from memory by {@link WebApp}
+         *                until importmap.js changes
+         */
+        public void setAppCode(String appCode) {
+            this.appCode = appCode;
+        }
+
+        public List<String> getEntryPoints() {
+            return entryPoints;
+        }
+
+        /**
+         * @param entryPoints The modules loaded by the pages of the application,
+         *                    relative to the directory. When set, only the
+         *                    packages they import, directly or through other
+         *                    packages, are mapped
+         */
+        public void setEntryPoints(List<String> entryPoints) {
+            this.entryPoints = entryPoints == null ? Collections.emptyList() : entryPoints;
+        }
+    }
+
     public static String generateImportMap(File directory) throws BusinessException {
+        ImportMap importMap = generateImportMap(directory, new Options());
+        if (!importMap.getFailures().isEmpty()) {
+            LOGGER.warn("{} dependencies were left out of the import map of {}: {}", importMap.getFailures().size(),
+                    directory, importMap.getFailures());
+        }
+        return importMap.getJson();
+    }
+
+    public static ImportMap generateImportMap(File directory, int parallelism) throws BusinessException {
+        Options options = new Options();
+        options.setParallelism(parallelism);
+        return generateImportMap(directory, options);
+    }
+
+    /**
+     * Generates importmap.js from the packages of package-lock.json. The
+     * package.json files are read in parallel, the imports are sorted so the
+     * output does not depend on the order they are read in.
+     * <p>
+     * In incremental mode, the lockfile hash and the package.json of each
+     * package are recorded in {@code .importmap-manifest.json}. The next run
+     * only reads the package.json files whose size or modification date
+     * changed, and the lockfile when its hash changed. importmap.js is only
+     * written when its contents change.
+     *
+     * @param directory The directory holding package-lock.json and the
+     *                  installed packages
+     * @param options   The settings of the generation
+     * @return The import map and the packages that could not be resolved
+     * @throws BusinessException if package-lock.json cannot be read or
+     *                           importmap.js cannot be written
+     */
+    public static ImportMap generateImportMap(File directory, Options options) throws BusinessException {
         try {
-            Map<String, String> importMap = new HashMap<>();
-            Map<String, Object> resultMap = new HashMap<>();
-            resultMap.put("imports", importMap);
+            File packageLockFile = new File(directory, PACKAGE_LOCK);
+            File manifestFile = new File(directory, MANIFEST);
+            String lockfileHash = hash(packageLockFile);
+            Manifest manifest = options.isIncremental() ? Manifest.read(manifestFile) : null;
+            List<String> packagePaths;
+            if (manifest != null && lockfileHash.equals(manifest.lockfileHash)) {
+                packagePaths = new ArrayList<>(manifest.packages.keySet());
+            } else {
+                packagePaths = options.isStreaming() ? readPackagePaths(packageLockFile)
+                        : readPackagePathsTree(packageLockFile);
+            }
 
-            Map<String, Object> packageLock = JacksonUtil.read(new File(directory, "package-lock.json"), Map.class);
+            Map<String, PackageInfo> resolved = new ConcurrentHashMap<>();
+            List<String> changed = new ArrayList<>();
+            for (String packagePath : packagePaths) {
+                PackageInfo previous = manifest == null ? null : manifest.packages.get(packagePath);
+                if (previous != null && previous.isFresh(packageJsonFile(directory, packagePath))) {
+                    resolved.put(packagePath, previous);
+                } else {
+                    changed.add(packagePath);
+                }
+            }
+            resolvePackages(directory, changed, options, resolved);
 
-            Map<String, Object> packages = (Map<String, Object>) packageLock.get("packages");
-            packages.entrySet()
-                .stream()
-                .filter(e -> !e.getKey().isEmpty())
-                .forEach(e -> {
-                    try {
-                        File packageJsonFile = new File(directory, e.getKey() + File.separator + "package.json");
-                        Map<String, Object> packageJson = (Map<String, Object>) JacksonUtil.read(packageJsonFile, Map.class);
-                        String name = (String) packageJson.get("name");
-                        String mainFile = (String) packageJson.get("main");
-                        if (StringUtils.isNotBlank(mainFile)) {
-                            importMap.put(name, "./" + e.getKey() + "/" + mainFile);
-                        }
-                        importMap.put(name + "/" , "./" + e.getKey() + "/");
-                    } catch (Exception e2) {
-                        LOGGER.error("Failed to parse dependency", e);
-                    }
-                });
+            // packages are applied in lockfile order, so that a name resolved by
+            // several paths keeps the last one like a sequential run
+            Map<String, String> importMap = new TreeMap<>();
+            Map<String, String> failures = new TreeMap<>();
+            Map<String, PackageInfo> packages = new LinkedHashMap<>();
+            for (String packagePath : packagePaths) {
+                PackageInfo info = resolved.get(packagePath);
+                packages.put(packagePath, info);
+                if (info.error != null) {
+                    failures.put(packagePath, info.error);
+                    continue;
+                }
+                if (StringUtils.isNotBlank(info.main)) {
+                    importMap.put(info.name, "./" + packagePath + "/" + info.main);
+                }
+                importMap.put(info.name + "/", "./" + packagePath + "/");
+            }
+            Map<String, Object> resultMap = new LinkedHashMap<>();
+            if (options.getEntryPoints().isEmpty()) {
+                resultMap.put("imports", importMap);
+            } else {
+                new ReachablePackages(directory, packages).build(options.getEntryPoints(), resultMap);
+            }
 
-            String importMapString = JacksonUtil.toStringPrettyPrinted(resultMap);
+            String compactString = options.isCompact() || options.getAppCode() != null
+                    ? JacksonUtil.toString(resultMap)
+                    : null;
+            String importMapString = options.isCompact() ? compactString : JacksonUtil.toStringPrettyPrinted(resultMap);
             String importMapJs = "window.importmap = " + importMapString + ";";
-            MeveoFileUtils.writeAndPreserveCharset(importMapJs, new File(directory, "importmap.js"));
-            return importMapString;
+            File importMapFile = new File(directory, "importmap.js");
+            if (!isUnchanged(importMapFile, importMapJs)) {
+                MeveoFileUtils.writeAndPreserveCharset(importMapJs, importMapFile);
+            }
+            if (options.isIncremental() && (manifest == null || !changed.isEmpty()
+                    || !lockfileHash.equals(manifest.lockfileHash))) {
+                new Manifest(lockfileHash, packages).write(manifestFile);
+            }
+            if (options.getAppCode() != null) {
+                WebApp.putImportMap(options.getAppCode(), directory, compactString);
+            } else {
+                // a map published from this directory would hide the new file
+                WebApp.removeImportMaps(directory);
+            }
+            LOGGER.debug("Import map of {} generated, {} of {} packages read", directory, changed.size(),
+                    packagePaths.size());
+            return new ImportMap(importMapString, failures);
         } catch (Exception e) {
             throw new BusinessException(e);
         }
     }
+
+    /**
+     * Reads the name and main file of each package on a bounded pool.
+     *
+     * @param resolved Receives the package.json of each package, by path
+     */
+    private static void resolvePackages(File directory, List<String> packagePaths, Options options,
+            Map<String, PackageInfo> resolved) throws InterruptedException {
+        if (packagePaths.isEmpty()) {
+            return;
+        }
+        int threads = Math.min(Math.max(1, options.getParallelism()), packagePaths.size());
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> tasks = new ArrayList<>(packagePaths.size());
+            for (String packagePath : packagePaths) {
+                tasks.add(executor.submit(() -> {
+                    File packageJsonFile = packageJsonFile(directory, packagePath);
+                    // the file is described before it is read, a change while reading
+                    // is picked up by the next run
+                    long lastModified = packageJsonFile.lastModified();
+                    long length = packageJsonFile.length();
+                    String[] nameAndMain = new String[2];
+                    String error = null;
+                    try {
+                        nameAndMain = options.isStreaming() ? readNameAndMain(packageJsonFile)
+                                : readNameAndMainTree(packageJsonFile);
+                        if (StringUtils.isBlank(nameAndMain[0])) {
+                            error = "package.json has no name";
+                        }
+                    } catch (Exception e) {
+                        LOGGER.debug("Failed to parse dependency {}", packagePath, e);
+                        error = String.valueOf(e);
+                    }
+                    resolved.put(packagePath, new PackageInfo(lastModified, length, nameAndMain[0], nameAndMain[1],
+                            error));
+                }));
+            }
+            for (Future<?> task : tasks) {
+                try {
+                    task.get();
+                } catch (ExecutionException e) {
+                    // failures are collected by the tasks
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static File packageJsonFile(File directory, String packagePath) {
+        return new File(directory, packagePath + File.separator + "package.json");
+    }
+
+    private static boolean isUnchanged(File file, String contents) throws IOException {
+        return file.isFile() && Arrays.equals(Files.readAllBytes(file.toPath()),
+                contents.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the SHA-256 of the file, encoded in base64
+     */
+    static String hash(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] buffer = new byte[8192];
+        try (InputStream input = new FileInputStream(file)) {
+            int read;
+            while ((read = input.read(buffer)) >= 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return Base64.getEncoder().encodeToString(digest.digest());
+    }
+
+    /**
+     * Fields of the package.json of a package, with the size and modification
+     * date of the file they were read from.
+     */
+    private static class PackageInfo {
+        private final long lastModified;
+        private final long length;
+        private final String name;
+        private final String main;
+        private final String error;
+
+        private PackageInfo(long lastModified, long length, String name, String main, String error) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.name = name;
+            this.main = main;
+            this.error = error;
+        }
+
+        private boolean isFresh(File packageJsonFile) {
+            return packageJsonFile.lastModified() == lastModified && packageJsonFile.length() == length;
+        }
+    }
+
+    /**
+     * State of the last generation of the import map of a directory, persisted
+     * in {@code .importmap-manifest.json}.
+     */
+    private static class Manifest {
+        private static final int VERSION = 1;
+
+        private final String lockfileHash;
+        private final Map<String, PackageInfo> packages;
+
+        private Manifest(String lockfileHash, Map<String, PackageInfo> packages) {
+            this.lockfileHash = lockfileHash;
+            this.packages = packages;
+        }
+
+        /**
+         * @return the manifest, or null if it does not exist or cannot be read
+         */
+        private static Manifest read(File file) {
+            if (!file.isFile()) {
+                return null;
+            }
+            try {
+                Map<String, Object> json = JacksonUtil.read(file, Map.class);
+                if (!Integer.valueOf(VERSION).equals(json.get("version"))) {
+                    return null;
+                }
+                Map<String, PackageInfo> packages = new LinkedHashMap<>();
+                for (Map<String, Object> entry : (List<Map<String, Object>>) json.get("packages")) {
+                    long lastModified = ((Number) entry.get("lastModified")).longValue();
+                    long length = ((Number) entry.get("length")).longValue();
+                    packages.put((String) entry.get("path"), new PackageInfo(lastModified, length,
+                            (String) entry.get("name"), (String) entry.get("main"), (String) entry.get("error")));
+                }
+                return new Manifest((String) json.get("lockfileHash"), packages);
+            } catch (Exception e) {
+                LOGGER.warn("Ignoring unreadable import map manifest {}", file, e);
+                return null;
+            }
+        }
+
+        private void write(File file) throws IOException {
+            List<Map<String, Object>> entries = new ArrayList<>(packages.size());
+            packages.forEach((path, info) -> {
+                Map<String, Object> entry = new LinkedHashMap<>();
+                entry.put("path", path);
+                entry.put("lastModified", info.lastModified);
+                entry.put("length", info.length);
+                entry.put("name", info.name);
+                entry.put("main", info.main);
+                entry.put("error", info.error);
+                entries.add(entry);
+            });
+            Map<String, Object> json = new LinkedHashMap<>();
+            json.put("version", VERSION);
+            json.put("lockfileHash", lockfileHash);
+            json.put("packages", entries);
+            File temporary = new File(file.getParentFile(), file.getName() + ".tmp");
+            Files.write(temporary.toPath(), JacksonUtil.toString(json).getBytes(StandardCharsets.UTF_8));
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * Pulls the keys of the {@code packages} object of package-lock.json,
+     * skipping the metadata of each package and the other fields.
+     *
+     * @return the path of each installed package, in lockfile order
+     * @throws IOException if the lockfile cannot be parsed or has no
+     *                     {@code packages} object, like the lockfiles of npm 6
+     */
+    static List<String> readPackagePaths(File packageLockFile) throws IOException {
+        List<String> packagePaths = new ArrayList<>();
+        boolean packagesFound = false;
+        try (JsonParser parser = JSON_FACTORY.createParser(packageLockFile)) {
+            expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (!"packages".equals(field)) {
+                    parser.skipChildren();
+                    continue;
+                }
+                expect(parser, value, JsonToken.START_OBJECT);
+                packagesFound = true;
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String packagePath = parser.getCurrentName();
+                    if (!packagePath.isEmpty()) {
+                        packagePaths.add(packagePath);
+                    }
+                    parser.nextToken();
+                    parser.skipChildren();
+                }
+            }
+        }
+        if (!packagesFound) {
+            throw missingPackages(packageLockFile);
+        }
+        return packagePaths;
+    }
+
+    /**
+     * Pulls the {@code name} and {@code main} fields of a package.json, skipping
+     * the other fields.
+     *
+     * @return the name and the main file of the package, null when missing
+     */
+    static String[] readNameAndMain(File packageJsonFile) throws IOException {
+        String[] nameAndMain = new String[2];
+        try (JsonParser parser = JSON_FACTORY.createParser(packageJsonFile)) {
+            expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                int index = "name".equals(field) ? 0 : "main".equals(field) ? 1 : -1;
+                if (index < 0) {
+                    parser.skipChildren();
+                } else if (value == JsonToken.VALUE_STRING) {
+                    nameAndMain[index] = parser.getText();
+                } else if (value == JsonToken.VALUE_NULL) {
+                    nameAndMain[index] = null;
+                } else {
+                    throw new JsonParseException(parser, field + " is not a string");
+                }
+            }
+        }
+        return nameAndMain;
+    }
+
+    private static IOException missingPackages(File packageLockFile) {
+        return new IOException(packageLockFile + " has no packages, run npm 7 or later to upgrade it to"
+                + " lockfileVersion 2");
+    }
+
+    private static void expect(JsonParser parser, JsonToken token, JsonToken expected) throws IOException {
+        if (token != expected) {
+            throw new JsonParseException(parser, "Expected " + expected + " but found " + token);
+        }
+    }
+
+    private static List<String> readPackagePathsTree(File packageLockFile) throws IOException {
+        Map<String, Object> packageLock = JacksonUtil.read(packageLockFile, Map.class);
+        Map<String, Object> packages = (Map<String, Object>) packageLock.get("packages");
+        if (packages == null) {
+            throw missingPackages(packageLockFile);
+        }
+        List<String> packagePaths = new ArrayList<>();
+        packages.keySet()
+            .stream()
+            .filter(key -> !key.isEmpty())
+            .forEach(packagePaths::add);
+        return packagePaths;
+    }
+
+    private static String[] readNameAndMainTree(File packageJsonFile) throws IOException {
+        Map<String, Object> packageJson = JacksonUtil.read(packageJsonFile, Map.class);
+        return new String[] { (String) packageJson.get("name"), (String) packageJson.get("main") };
+    }
+
+    /**
+     * Walks the static imports of the modules of an application to find the
+     * packages they load. Bare specifiers are resolved like node does, from the
+     * closest node_modules directory of the importing module, so a package
+     * installed in several versions is mapped in the scope of the packages
+     * depending on the nested one.
+     */
+    private static class ReachablePackages {
+
+        // import ... from "x", export ... from "x", import "x" and import("x"), the
+        // text is not tokenized so a specifier in a comment or string is kept too
+        private static final Pattern SPECIFIER = Pattern.compile(
+                "(?:\\bfrom\\s*|\\bimport\\s*|\\bimport\\s*\\(\\s*)[\"']([^\"'\\s]+)[\"']");
+        private static final String NODE_MODULES = "node_modules/";
+
+        private final File directory;
+        private final Map<String, PackageInfo> packages;
+        private final Set<String> reachable = new TreeSet<>();
+        private final Set<String> visited = new HashSet<>();
+        private final Deque<String> modules = new ArrayDeque<>();
+
+        private ReachablePackages(File directory, Map<String, PackageInfo> packages) {
+            this.directory = directory;
+            this.packages = packages;
+        }
+
+        /**
+         * @param entryPoints The paths of the entry modules
+         * @param resultMap   Receives the imports and scopes of the reachable
+         *                    packages
+         */
+        private void build(List<String> entryPoints, Map<String, Object> resultMap) throws IOException {
+            for (String entryPoint : entryPoints) {
+                String module = resolveFile(normalize("", entryPoint));
+                if (module == null) {
+                    throw new IOException("Entry point " + entryPoint + " not found in " + directory);
+                }
+                enqueue(module);
+            }
+            while (!modules.isEmpty()) {
+                String module = modules.poll();
+                String source = new String(Files.readAllBytes(new File(directory, module).toPath()),
+                        StandardCharsets.UTF_8);
+                Matcher matcher = SPECIFIER.matcher(source);
+                while (matcher.find()) {
+                    enqueue(resolve(module, matcher.group(1)));
+                }
+            }
+            Map<String, String> imports = new TreeMap<>();
+            Map<String, Map<String, String>> scopes = new TreeMap<>();
+            for (String packagePath : reachable) {
+                int index = packagePath.lastIndexOf(NODE_MODULES);
+                String name = packagePath.substring(index + NODE_MODULES.length());
+                String scope = packagePath.substring(0, index);
+                Map<String, String> target = scope.isEmpty() ? imports
+                        : scopes.computeIfAbsent("./" + scope, key -> new TreeMap<>());
+                PackageInfo info = packages.get(packagePath);
+                if (StringUtils.isNotBlank(info.main)) {
+                    target.put(name, "./" + packagePath + "/" + info.main);
+                }
+                target.put(name + "/", "./" + packagePath + "/");
+            }
+            resultMap.put("imports", imports);
+            if (!scopes.isEmpty()) {
+                resultMap.put("scopes", scopes);
+            }
+        }
+
+        /**
+         * @return the path of the module loaded by the specifier, or null if it
+         *         is not a file of the directory
+         */
+        private String resolve(String importer, String specifier) {
+            if (specifier.contains(":")) {
+                // URLs are loaded as is
+                return null;
+            }
+            String parent = parentOf(importer);
+            if (specifier.startsWith("/")) {
+                return resolveFile(normalize("", specifier));
+            }
+            if (specifier.startsWith("./") || specifier.startsWith("../")) {
+                return resolveFile(normalize(parent, specifier));
+            }
+            int nameEnd = specifier.indexOf('/', specifier.startsWith("@") ? specifier.indexOf('/') + 1 : 0);
+            String name = nameEnd < 0 ? specifier : specifier.substring(0, nameEnd);
+            String subpath = nameEnd < 0 ? "" : specifier.substring(nameEnd + 1);
+            for (String dir = parent;; dir = parentOf(dir)) {
+                String packagePath = (dir.isEmpty() ? "" : dir + "/") + NODE_MODULES + name;
+                PackageInfo info = packages.get(packagePath);
+                if (info != null && info.error == null) {
+                    reachable.add(packagePath);
+                    String file = !subpath.isEmpty() ? subpath
+                            : StringUtils.isNotBlank(info.main) ? info.main : "index.js";
+                    return resolveFile(normalize(packagePath, file));
+                }
+                if (dir.isEmpty()) {
+                    return null;
+                }
+            }
+        }
+
+        private void enqueue(String module) {
+            if (module != null && (module.endsWith(".js") || module.endsWith(".mjs")) && visited.add(module)) {
+                modules.add(module);
+            }
+        }
+
+        /**
+         * @return the path of the file with the usual extensions added, or null
+         *         if it does not exist
+         */
+        private String resolveFile(String path) {
+            if (path == null) {
+                return null;
+            }
+            for (String candidate : new String[] { path, path + ".js", path + ".mjs", path + "/index.js" }) {
+                if (new File(directory, candidate).isFile()) {
+                    return candidate;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return the path relative to the directory, or null if it points
+         *         outside of it
+         */
+        private static String normalize(String base, String path) {
+            Deque<String> segments = new ArrayDeque<>();
+            for (String segment : (base + "/" + path).split("/")) {
+                if (segment.isEmpty() || ".".equals(segment)) {
+                    continue;
+                }
+                if ("..".equals(segment)) {
+                    if (segments.isEmpty()) {
+                        return null;
+                    }
+                    segments.removeLast();
+                } else {
+                    segments.addLast(segment);
+                }
+            }
+            return String.join("/", segments);
+        }
+
+        private static String parentOf(String path) {
+            int index = path.lastIndexOf('/');
+            return index < 0 ? "" : path.substring(0, index);
+        }
+    }
 }
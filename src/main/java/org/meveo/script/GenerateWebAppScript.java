@@ -244,6 +244,15 @@ public class GenerateWebAppScript extends Script {
 				
 			}
 			
+			// preload the caches of the application in the background
+			try {
+				String webContext = appContext.replaceAll("^/+|/+$", "");
+				org.manaty.webapp.WebApp.warmUp(moduleCode, webContext.isEmpty() ? "" : "/" + webContext,
+						Runtime.getRuntime().availableProcessors());
+			} catch (RuntimeException e) {
+				LOG.warn("Failed to warm up the caches of {}", moduleCode, e);
+			}
+
 		}
 		LOG.debug("END - GenerateWebAppScript.execute()");
 	}